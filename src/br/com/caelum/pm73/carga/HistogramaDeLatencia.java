@@ -0,0 +1,70 @@
+package br.com.caelum.pm73.carga;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma log-linear de latencias em microssegundos, com erro relativo
+ * abaixo de 1% em qualquer faixa. Gravar e' uma unica operacao atomica, entao
+ * varias threads podem registrar ao mesmo tempo.
+ */
+public class HistogramaDeLatencia {
+
+	private static final int BITS_DE_PRECISAO = 7;
+	private static final int SUBDIVISOES = 1 << BITS_DE_PRECISAO;
+	private static final int LINEARES = 2 * SUBDIVISOES;
+
+	private final AtomicLongArray contagens = new AtomicLongArray((64 - BITS_DE_PRECISAO) * SUBDIVISOES);
+
+	public void registra(long micros) {
+		contagens.incrementAndGet(indice(Math.max(0, micros)));
+	}
+
+	public void soma(HistogramaDeLatencia outro) {
+		for (int i = 0; i < contagens.length(); i++) {
+			long contagem = outro.contagens.get(i);
+			if (contagem != 0) contagens.addAndGet(i, contagem);
+		}
+	}
+
+	public long total() {
+		long total = 0;
+		for (int i = 0; i < contagens.length(); i++) {
+			total += contagens.get(i);
+		}
+		return total;
+	}
+
+	/** Latencia, em microssegundos, abaixo da qual ficam {@code percentil}% das amostras. */
+	public long percentil(double percentil) {
+		long total = total();
+		if (total == 0) return 0;
+
+		long alvo = Math.max(1, (long) Math.ceil(total * percentil / 100));
+		long acumulado = 0;
+		for (int i = 0; i < contagens.length(); i++) {
+			acumulado += contagens.get(i);
+			if (acumulado >= alvo) return limiteSuperior(i);
+		}
+		return limiteSuperior(contagens.length() - 1);
+	}
+
+	public long maximo() {
+		for (int i = contagens.length() - 1; i >= 0; i--) {
+			if (contagens.get(i) != 0) return limiteSuperior(i);
+		}
+		return 0;
+	}
+
+	static int indice(long valor) {
+		if (valor < LINEARES) return (int) valor;
+		int deslocamento = 63 - Long.numberOfLeadingZeros(valor) - BITS_DE_PRECISAO;
+		return (deslocamento + 1) * SUBDIVISOES + (int) ((valor >>> deslocamento) - SUBDIVISOES);
+	}
+
+	static long limiteSuperior(int indice) {
+		if (indice < LINEARES) return indice;
+		int deslocamento = indice / SUBDIVISOES - 1;
+		long mantissa = indice % SUBDIVISOES + SUBDIVISOES;
+		return ((mantissa + 1) << deslocamento) - 1;
+	}
+}
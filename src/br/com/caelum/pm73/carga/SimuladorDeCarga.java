@@ -0,0 +1,424 @@
+package br.com.caelum.pm73.carga;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+import org.hibernate.LockOptions;
+import org.hibernate.Session;
+import org.hibernate.tool.hbm2ddl.SchemaExport;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UnidadeDeTrabalho;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Dinheiro;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Gera carga concorrente sobre LeilaoDao e UsuarioDao em malha aberta: as
+ * operacoes sao disparadas no ritmo pedido, independente de as anteriores
+ * terem terminado, e a latencia e' medida a partir do instante em que cada
+ * uma deveria ter comecado. Assim o tempo na fila entra na conta.
+ *
+ * Uso: {@code SimuladorDeCarga threads=32 taxa=500 duracao=60 relatorio=5
+ * quentes=5 mix=navegar:60,abrir:10,lance:25,encerrar:5}
+ *
+ * Cada operacao e' uma {@link UnidadeDeTrabalho}; conflitos transitorios sao
+ * repetidos por ela e entram na coluna de conflitos mesmo quando a repeticao
+ * da certo.
+ *
+ * Por padrao roda contra um HSQLDB em memoria ({@code pm73.db.url}).
+ * Parametros invalidos sao recusados com IllegalArgumentException antes de
+ * qualquer acesso ao banco.
+ */
+public class SimuladorDeCarga {
+
+	enum Operacao { NAVEGAR, ABRIR, LANCE, ENCERRAR }
+
+	private static final int COMPRADORES = 200;
+	private static final int LEILOES_INICIAIS = 200;
+	private static final int PURGA_A_CADA = 20;
+	private static final List<String> PARAMETROS =
+			Arrays.asList("threads", "taxa", "duracao", "relatorio", "quentes", "mix");
+	private static final String USO = "uso: SimuladorDeCarga threads=32 taxa=500 duracao=60 relatorio=5 "
+			+ "quentes=5 mix=navegar:60,abrir:10,lance:25,encerrar:5";
+
+	private final int threads;
+	private final int taxa;
+	private final int duracao;
+	private final int intervalo;
+	private final int[] pesos = new int[Operacao.values().length];
+
+	private final CriadorDeSessao criador = new CriadorDeSessao();
+	private final UnidadeDeTrabalho unidade = new UnidadeDeTrabalho();
+	private final List<Integer> quentes = new ArrayList<Integer>();
+	private final List<Integer> compradores = new ArrayList<Integer>();
+	private final ConcurrentSkipListSet<Integer> abertos = new ConcurrentSkipListSet<Integer>();
+	private final AtomicInteger sequencia = new AtomicInteger();
+	private final AtomicInteger encerramentos = new AtomicInteger();
+
+	private final Metricas total = new Metricas();
+	private final AtomicReference<Metricas> doIntervalo = new AtomicReference<Metricas>(new Metricas());
+
+	private static class Metricas {
+		final Map<Operacao, HistogramaDeLatencia> latencias = new EnumMap<Operacao, HistogramaDeLatencia>(Operacao.class);
+		final Map<Operacao, LongAdder> erros = new EnumMap<Operacao, LongAdder>(Operacao.class);
+		final LongAdder conflitos = new LongAdder();
+		final HistogramaDeLatencia esperasPorLock = new HistogramaDeLatencia();
+
+		Metricas() {
+			for (Operacao operacao : Operacao.values()) {
+				latencias.put(operacao, new HistogramaDeLatencia());
+				erros.put(operacao, new LongAdder());
+			}
+		}
+
+		HistogramaDeLatencia todas() {
+			HistogramaDeLatencia todas = new HistogramaDeLatencia();
+			for (HistogramaDeLatencia latencia : latencias.values()) {
+				todas.soma(latencia);
+			}
+			return todas;
+		}
+
+		long erros() {
+			long soma = 0;
+			for (LongAdder erro : erros.values()) {
+				soma += erro.sum();
+			}
+			return soma;
+		}
+	}
+
+	public SimuladorDeCarga(Map<String, String> parametros) {
+		for (String chave : parametros.keySet()) {
+			if (!PARAMETROS.contains(chave)) throw new IllegalArgumentException("parametro desconhecido: " + chave);
+		}
+		this.threads = inteiro(parametros, "threads", 32, 1, Integer.MAX_VALUE);
+		// acima de um bilhao por segundo o periodo entre disparos seria zero
+		this.taxa = inteiro(parametros, "taxa", 500, 1, (int) TimeUnit.SECONDS.toNanos(1));
+		this.duracao = inteiro(parametros, "duracao", 60, 1, Integer.MAX_VALUE);
+		this.intervalo = inteiro(parametros, "relatorio", 5, 1, Integer.MAX_VALUE);
+		int quantidadeDeQuentes = inteiro(parametros, "quentes", 5, 1, LEILOES_INICIAIS);
+		lePesos(valor(parametros, "mix", "navegar:60,abrir:10,lance:25,encerrar:5"));
+
+		criador.getConfig().setProperty("hibernate.connection.pool_size", String.valueOf(threads));
+		new SchemaExport(criador.getConfig()).execute(false, true, false, true);
+		prepara(quantidadeDeQuentes);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		System.setProperty("pm73.db.url", System.getProperty("pm73.db.url", "jdbc:hsqldb:mem:simulacao"));
+		System.setProperty("pm73.db.show_sql", System.getProperty("pm73.db.show_sql", "false"));
+
+		SimuladorDeCarga simulador;
+		try {
+			Map<String, String> parametros = new HashMap<String, String>();
+			for (String arg : args) {
+				String[] chaveEValor = arg.split("=", 2);
+				if (chaveEValor.length != 2) throw new IllegalArgumentException("esperava chave=valor: " + arg);
+				parametros.put(chaveEValor[0], chaveEValor[1]);
+			}
+			simulador = new SimuladorDeCarga(parametros);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USO);
+			System.exit(1);
+			return;
+		}
+		simulador.roda();
+	}
+
+	public void roda() throws InterruptedException {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		ScheduledExecutorService relogio = Executors.newSingleThreadScheduledExecutor();
+
+		System.out.printf("%d threads, %d ops/s por %ds, mix %s%n", threads, taxa, duracao, mix());
+		System.out.println("     t     ops/s      p50     p99   p99.9     max   erros conflitos  lock p99  fila");
+
+		long inicio = System.nanoTime();
+		relogio.scheduleAtFixedRate(() -> relata(inicio, executor), intervalo, intervalo, TimeUnit.SECONDS);
+
+		disparaEmMalhaAberta(executor, taxa, inicio, inicio + TimeUnit.SECONDS.toNanos(duracao),
+				previsto -> executa(sorteia(), previsto));
+
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		relogio.shutdownNow();
+		resumo();
+	}
+
+	/**
+	 * Entrega ao executor uma tarefa a cada {@code 1/taxa} segundos em
+	 * [inicio, fim), com o instante em que ela deveria comecar, sem esperar
+	 * as anteriores terminarem.
+	 */
+	static void disparaEmMalhaAberta(Executor executor, int taxa, long inicio, long fim, LongConsumer tarefa) {
+		long periodo = TimeUnit.SECONDS.toNanos(1) / taxa;
+		for (long i = 0; ; i++) {
+			long previsto = inicio + i * periodo;
+			if (previsto >= fim) break;
+
+			long agora;
+			while ((agora = System.nanoTime()) < previsto) {
+				LockSupport.parkNanos(previsto - agora);
+			}
+			executor.execute(() -> tarefa.accept(previsto));
+		}
+	}
+
+	/** Microssegundos desde o instante previsto, incluindo o tempo na fila. */
+	static long latenciaDesde(long previsto) {
+		return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - previsto);
+	}
+
+	private void prepara(int quantidadeDeQuentes) {
+		compradores.addAll(unidade.executarEmTransacao(() -> {
+			List<Integer> ids = new ArrayList<Integer>();
+			UsuarioDao usuarioDao = new UsuarioDao();
+			for (int i = 0; i < COMPRADORES; i++) {
+				Usuario comprador = new Usuario("Comprador " + i, "comprador" + i + "@carga.com.br");
+				usuarioDao.salvar(comprador);
+				ids.add(comprador.getId());
+			}
+			return ids;
+		}));
+		for (int i = 0; i < LEILOES_INICIAIS; i++) {
+			int id = abre(total);
+			if (i < quantidadeDeQuentes) quentes.add(id);
+		}
+	}
+
+	private void executa(Operacao operacao, long previsto) {
+		Metricas intervaloAtual = doIntervalo.get();
+		try {
+			switch (operacao) {
+			case NAVEGAR: navega(intervaloAtual); break;
+			case ABRIR: abre(intervaloAtual); break;
+			case LANCE: daLance(intervaloAtual); break;
+			case ENCERRAR: encerra(intervaloAtual); break;
+			}
+		} catch (RuntimeException e) {
+			intervaloAtual.erros.get(operacao).increment();
+			total.erros.get(operacao).increment();
+			if (UnidadeDeTrabalho.ehConflitoTransitorio(e)) {
+				intervaloAtual.conflitos.increment();
+				total.conflitos.increment();
+			}
+		}
+		long latencia = latenciaDesde(previsto);
+		intervaloAtual.latencias.get(operacao).registra(latencia);
+		total.latencias.get(operacao).registra(latencia);
+	}
+
+	private void navega(Metricas intervaloAtual) {
+		unidade.executarEmTransacao(contandoRepeticoes(intervaloAtual, () -> {
+			LeilaoDao leilaoDao = new LeilaoDao();
+			if (ThreadLocalRandom.current().nextBoolean()) {
+				return leilaoDao.novos();
+			}
+			Calendar fim = Calendar.getInstance();
+			Calendar inicio = Calendar.getInstance();
+			inicio.add(Calendar.DAY_OF_MONTH, -7);
+			return leilaoDao.porPeriodo(inicio, fim);
+		}));
+	}
+
+	private int abre(Metricas intervaloAtual) {
+		int n = sequencia.incrementAndGet();
+		int id = unidade.executarEmTransacao(contandoRepeticoes(intervaloAtual, () -> {
+			Usuario dono = new Usuario("Vendedor " + n, "vendedor" + n + "@carga.com.br");
+			new UsuarioDao().salvar(dono);
+			Leilao leilao = new Leilao("Produto " + n,
+					Dinheiro.emCentavos(ThreadLocalRandom.current().nextLong(100, 1000000)), dono,
+					ThreadLocalRandom.current().nextBoolean());
+			new LeilaoDao().salvar(leilao);
+			return leilao.getId();
+		}));
+		abertos.add(id);
+		return id;
+	}
+
+	private void daLance(Metricas intervaloAtual) {
+		ThreadLocalRandom aleatorio = ThreadLocalRandom.current();
+		Integer id = aleatorio.nextInt(100) < 80 || abertos.isEmpty()
+				? quentes.get(aleatorio.nextInt(quentes.size()))
+				: qualquerAberto();
+		if (id == null) return;
+
+		unidade.executarEmTransacao(contandoRepeticoes(intervaloAtual, () -> {
+			Leilao leilao = new LeilaoDao().porId(id);
+			if (leilao == null) return null;
+
+			Session session = UnidadeDeTrabalho.sessaoAtual();
+			long inicio = System.nanoTime();
+			session.buildLockRequest(LockOptions.UPGRADE).lock(leilao);
+			long espera = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - inicio);
+			intervaloAtual.esperasPorLock.registra(espera);
+			total.esperasPorLock.registra(espera);
+
+			Usuario comprador = (Usuario) session.load(Usuario.class,
+					compradores.get(aleatorio.nextInt(compradores.size())));
+			Long valorInicial = leilao.getValorInicialEmCentavos();
+			Lance lance = leilao.adicionaLance(new Lance(Calendar.getInstance(), comprador,
+					Dinheiro.emCentavos((valorInicial == null ? 0 : valorInicial) + aleatorio.nextLong(1, 10000))));
+			session.save(lance);
+			return null;
+		}));
+	}
+
+	private void encerra(Metricas intervaloAtual) {
+		Integer id = qualquerAberto();
+		if (id == null || quentes.contains(id)) return;
+		abertos.remove(id);
+
+		boolean purga = encerramentos.incrementAndGet() % PURGA_A_CADA == 0;
+		unidade.executarEmTransacao(contandoRepeticoes(intervaloAtual, () -> {
+			LeilaoDao leilaoDao = new LeilaoDao();
+			Leilao leilao = leilaoDao.porId(id);
+			if (leilao != null) leilao.encerra();
+			if (purga) leilaoDao.deletaEncerrados();
+			return null;
+		}));
+	}
+
+	private Integer qualquerAberto() {
+		if (abertos.isEmpty()) return null;
+		int primeiro = abertos.first();
+		int ultimo = abertos.last();
+		Integer id = abertos.ceiling(ThreadLocalRandom.current().nextInt(primeiro, ultimo + 1));
+		return id != null ? id : abertos.first();
+	}
+
+	/** A unidade so repete o trabalho depois de um conflito transitorio. */
+	private <T> Supplier<T> contandoRepeticoes(Metricas intervaloAtual, Supplier<T> trabalho) {
+		AtomicInteger tentativas = new AtomicInteger();
+		return () -> {
+			if (tentativas.incrementAndGet() > 1) {
+				intervaloAtual.conflitos.increment();
+				total.conflitos.increment();
+			}
+			return trabalho.get();
+		};
+	}
+
+	private Operacao sorteia() {
+		int soma = 0;
+		for (int peso : pesos) soma += peso;
+
+		int sorteado = ThreadLocalRandom.current().nextInt(soma);
+		for (Operacao operacao : Operacao.values()) {
+			sorteado -= pesos[operacao.ordinal()];
+			if (sorteado < 0) return operacao;
+		}
+		return Operacao.NAVEGAR;
+	}
+
+	private synchronized void relata(long inicio, ThreadPoolExecutor executor) {
+		Metricas metricas = doIntervalo.getAndSet(new Metricas());
+		HistogramaDeLatencia todas = metricas.todas();
+		long segundos = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - inicio);
+
+		System.out.printf("%5ds %9.1f %s %7d %9d %9.2f %5d%n", segundos, (double) todas.total() / intervalo,
+				percentis(todas), metricas.erros(), metricas.conflitos.sum(),
+				ms(metricas.esperasPorLock.percentil(99)), executor.getQueue().size());
+	}
+
+	private void resumo() {
+		System.out.println();
+		System.out.println("operacao        total      p50     p99   p99.9     max   erros");
+		for (Operacao operacao : Operacao.values()) {
+			HistogramaDeLatencia latencias = total.latencias.get(operacao);
+			System.out.printf("%-10s %10d %s %7d%n", operacao, latencias.total(), percentis(latencias),
+					total.erros.get(operacao).sum());
+		}
+		HistogramaDeLatencia todas = total.todas();
+		System.out.printf("%-10s %10d %s %7d%n", "TOTAL", todas.total(), percentis(todas), total.erros());
+		System.out.printf("vazao media %.1f ops/s, conflitos %d, espera por lock p50 %.2fms p99 %.2fms max %.2fms%n",
+				(double) todas.total() / duracao, total.conflitos.sum(),
+				ms(total.esperasPorLock.percentil(50)), ms(total.esperasPorLock.percentil(99)),
+				ms(total.esperasPorLock.maximo()));
+	}
+
+	private static String percentis(HistogramaDeLatencia latencias) {
+		return String.format("%8.2f %7.2f %7.2f %7.2f", ms(latencias.percentil(50)), ms(latencias.percentil(99)),
+				ms(latencias.percentil(99.9)), ms(latencias.maximo()));
+	}
+
+	private static double ms(long micros) {
+		return micros / 1000.0;
+	}
+
+	private String mix() {
+		StringBuilder mix = new StringBuilder();
+		for (Operacao operacao : Operacao.values()) {
+			if (mix.length() > 0) mix.append(',');
+			mix.append(operacao.name().toLowerCase()).append(':').append(pesos[operacao.ordinal()]);
+		}
+		return mix.toString();
+	}
+
+	private void lePesos(String mix) {
+		for (String peso : mix.split(",")) {
+			String[] partes = peso.split(":");
+			Operacao operacao = null;
+			int valor = -1;
+			if (partes.length == 2) {
+				try {
+					operacao = Operacao.valueOf(partes[0].trim().toUpperCase());
+					valor = Integer.parseInt(partes[1].trim());
+				} catch (IllegalArgumentException e) {
+				}
+			}
+			if (operacao == null || valor < 0) {
+				throw new IllegalArgumentException("mix espera operacao:peso, com operacao entre "
+						+ Arrays.toString(Operacao.values()).toLowerCase() + " e peso >= 0: " + peso);
+			}
+			pesos[operacao.ordinal()] = valor;
+		}
+
+		long soma = 0;
+		for (int peso : pesos) soma += peso;
+		if (soma == 0 || soma > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("mix precisa de pesos com soma entre 1 e " + Integer.MAX_VALUE + ": " + mix);
+		}
+	}
+
+	private static int inteiro(Map<String, String> parametros, String chave, int padrao, int minimo, int maximo) {
+		String valor = parametros.get(chave);
+		if (valor == null) return padrao;
+		try {
+			int inteiro = Integer.parseInt(valor.trim());
+			if (inteiro >= minimo && inteiro <= maximo) return inteiro;
+		} catch (NumberFormatException e) {
+		}
+		throw new IllegalArgumentException(chave + " deve ser um inteiro entre " + minimo + " e " + maximo + ": " + valor);
+	}
+
+	private static String valor(Map<String, String> parametros, String chave, String padrao) {
+		String valor = parametros.get(chave);
+		return valor == null ? padrao : valor;
+	}
+}
@@ -0,0 +1,119 @@
+package br.com.caelum.pm73.curso;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.jdbc.Work;
+import org.jboss.logging.Logger;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dominio.Dinheiro;
+
+/**
+ * Converte LEILAO.VALORINICIAL e LANCE.VALOR (DOUBLE, em reais) para as
+ * colunas em centavos usadas pelo mapeamento, com o mesmo arredondamento de
+ * {@link Dinheiro#emReais(double)}. O valor inicial continua opcional: NULL
+ * vira NULL. Pode ser rodada mais de uma vez, inclusive depois de falhar no
+ * meio: tabelas ja migradas sao ignoradas. O andamento vai para o mesmo log
+ * do Hibernate.
+ */
+public class MigraValoresParaCentavos {
+
+	private static final Logger log = Logger.getLogger(MigraValoresParaCentavos.class);
+	private static final int LINHAS_POR_LOTE = 1000;
+
+	public static void main(String[] args) {
+		Session session = new CriadorDeSessao().getSession();
+		Transaction transacao = session.beginTransaction();
+		try {
+			session.doWork(new Work() {
+				@Override
+				public void execute(Connection conexao) throws SQLException {
+					migra(conexao, "LEILAO", "VALORINICIAL", "VALORINICIAL_CENTAVOS", true);
+					migra(conexao, "LANCE", "VALOR", "VALOR_CENTAVOS", false);
+				}
+			});
+			transacao.commit();
+			
+			// grava o script do HSQLDB antes de a JVM terminar
+			session.doWork(new Work() {
+				@Override
+				public void execute(Connection conexao) throws SQLException {
+					try (Statement st = conexao.createStatement()) {
+						st.execute("checkpoint");
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			transacao.rollback();
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	private static void migra(Connection conexao, String tabela, String emReais, String emCentavos,
+			boolean aceitaNulo) throws SQLException {
+		if (aceitaNulo && existe(conexao, tabela, emCentavos)) {
+			// coluna criada como not null por uma versao anterior desta migracao
+			try (Statement st = conexao.createStatement()) {
+				st.executeUpdate("alter table " + tabela + " alter column " + emCentavos + " set null");
+			}
+		}
+		if (!existe(conexao, tabela, emReais)) {
+			log.infof("%s.%s ja migrada", tabela, emReais);
+			return;
+		}
+
+		// DDL no HSQLDB faz commit sozinho; cada passo precisa poder ser repetido
+		try (Statement st = conexao.createStatement()) {
+			if (!existe(conexao, tabela, emCentavos)) {
+				st.executeUpdate("alter table " + tabela + " add column " + emCentavos
+						+ (aceitaNulo ? " bigint" : " bigint default 0 not null"));
+			}
+			int linhas = converte(conexao, tabela, emReais, emCentavos);
+			st.executeUpdate("alter table " + tabela + " drop column " + emReais);
+			log.infof("%s: %d linhas convertidas para centavos", tabela, linhas);
+		}
+	}
+
+	/**
+	 * Converte linha a linha com {@link Dinheiro#emReais(double)}, para que um
+	 * valor migrado vire exatamente os mesmos centavos que o mesmo valor
+	 * digitado hoje.
+	 */
+	private static int converte(Connection conexao, String tabela, String emReais, String emCentavos)
+			throws SQLException {
+		int linhas = 0;
+		try (Statement st = conexao.createStatement();
+				ResultSet valores = st.executeQuery("select ID, " + emReais + " from " + tabela);
+				PreparedStatement atualiza = conexao.prepareStatement(
+						"update " + tabela + " set " + emCentavos + " = ? where ID = ?")) {
+			while (valores.next()) {
+				double reais = valores.getDouble(2);
+				if (valores.wasNull()) {
+					atualiza.setNull(1, Types.BIGINT);
+				} else {
+					atualiza.setLong(1, Dinheiro.emReais(reais).getCentavos());
+				}
+				atualiza.setInt(2, valores.getInt(1));
+				atualiza.addBatch();
+				if (++linhas % LINHAS_POR_LOTE == 0) atualiza.executeBatch();
+			}
+			atualiza.executeBatch();
+		}
+		return linhas;
+	}
+
+	private static boolean existe(Connection conexao, String tabela, String coluna) throws SQLException {
+		try (ResultSet colunas = conexao.getMetaData().getColumns(null, null, tabela, coluna)) {
+			return colunas.next();
+		}
+	}
+}
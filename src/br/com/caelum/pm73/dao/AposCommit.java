@@ -0,0 +1,36 @@
+package br.com.caelum.pm73.dao;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+/**
+ * Adia uma acao em memoria para depois do commit da transacao da sessao; se
+ * a transacao for desfeita, a acao e' descartada. Sem transacao ativa a
+ * alteracao e' recusada: a conexao nao esta em autocommit, entao nada garante
+ * que ela sera comitada.
+ */
+final class AposCommit {
+
+	private AposCommit() {
+	}
+
+	static void executa(Session session, final Runnable acao) {
+		Transaction transacao = session.getTransaction();
+		if (!transacao.isActive()) {
+			throw new IllegalStateException("Alteracao fora de transacao: so o que for comitado e' acompanhado");
+		}
+		transacao.registerSynchronization(new Synchronization() {
+			@Override
+			public void beforeCompletion() {
+			}
+
+			@Override
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) acao.run();
+			}
+		});
+	}
+}
@@ -0,0 +1,237 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.CacheDataDescription;
+import org.hibernate.cache.spi.CollectionRegion;
+import org.hibernate.cache.spi.EntityRegion;
+import org.hibernate.cache.spi.NaturalIdRegion;
+import org.hibernate.cache.spi.QueryResultsRegion;
+import org.hibernate.cache.spi.RegionFactory;
+import org.hibernate.cache.spi.TimestampsRegion;
+import org.hibernate.cache.spi.access.AccessType;
+import org.hibernate.cache.spi.access.NaturalIdRegionAccessStrategy;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.hibernate.cfg.Settings;
+
+/**
+ * Cache de segundo nivel em memoria so para resolucoes de natural id
+ * ({@code @NaturalIdCache}): guarda natural id -> id, nunca entidades.
+ *
+ * Segue a estrategia nao estrita: so o que foi lido do banco entra, e
+ * qualquer escrita na chave apenas a descarta. Uma leitura concorrente com
+ * uma alteracao pode deixar uma resolucao velha; quem consulta confere o
+ * natural id da entidade carregada.
+ */
+public class CacheDeNaturalId implements RegionFactory {
+
+	private static final long serialVersionUID = 1L;
+	private static final int ESPERA_DE_LOCK_EM_MILIS = 60000;
+
+	@Override
+	public void start(Settings settings, Properties properties) {
+	}
+
+	@Override
+	public void stop() {
+	}
+
+	@Override
+	public boolean isMinimalPutsEnabledByDefault() {
+		return false;
+	}
+
+	@Override
+	public AccessType getDefaultAccessType() {
+		return AccessType.NONSTRICT_READ_WRITE;
+	}
+
+	@Override
+	public long nextTimestamp() {
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public NaturalIdRegion buildNaturalIdRegion(String nome, Properties properties, CacheDataDescription descricao) {
+		return new Regiao(nome, descricao);
+	}
+
+	@Override
+	public EntityRegion buildEntityRegion(String nome, Properties properties, CacheDataDescription descricao) {
+		throw new CacheException("Apenas natural ids sao guardados em cache: " + nome);
+	}
+
+	@Override
+	public CollectionRegion buildCollectionRegion(String nome, Properties properties, CacheDataDescription descricao) {
+		throw new CacheException("Apenas natural ids sao guardados em cache: " + nome);
+	}
+
+	@Override
+	public QueryResultsRegion buildQueryResultsRegion(String nome, Properties properties) {
+		throw new CacheException("Apenas natural ids sao guardados em cache: " + nome);
+	}
+
+	@Override
+	public TimestampsRegion buildTimestampsRegion(String nome, Properties properties) {
+		throw new CacheException("Apenas natural ids sao guardados em cache: " + nome);
+	}
+
+	private static class Regiao implements NaturalIdRegion, NaturalIdRegionAccessStrategy {
+
+		private final String nome;
+		private final CacheDataDescription descricao;
+		private final Map<Object, Object> ids = new ConcurrentHashMap<Object, Object>();
+
+		Regiao(String nome, CacheDataDescription descricao) {
+			this.nome = nome;
+			this.descricao = descricao;
+		}
+
+		@Override
+		public NaturalIdRegionAccessStrategy buildAccessStrategy(AccessType tipo) {
+			return this;
+		}
+
+		@Override
+		public NaturalIdRegion getRegion() {
+			return this;
+		}
+
+		@Override
+		public Object get(Object chave, long instante) {
+			return ids.get(chave);
+		}
+
+		@Override
+		public boolean putFromLoad(Object chave, Object id, long instante, Object versao) {
+			ids.put(chave, id);
+			return true;
+		}
+
+		@Override
+		public boolean putFromLoad(Object chave, Object id, long instante, Object versao, boolean minimalPut) {
+			if (minimalPut && ids.containsKey(chave)) return false;
+			return putFromLoad(chave, id, instante, versao);
+		}
+
+		@Override
+		public boolean insert(Object chave, Object id) {
+			return false;
+		}
+
+		@Override
+		public boolean afterInsert(Object chave, Object id) {
+			return false;
+		}
+
+		@Override
+		public boolean update(Object chave, Object id) {
+			evict(chave);
+			return false;
+		}
+
+		@Override
+		public boolean afterUpdate(Object chave, Object id, SoftLock lock) {
+			evict(chave);
+			return false;
+		}
+
+		@Override
+		public SoftLock lockItem(Object chave, Object versao) {
+			return null;
+		}
+
+		@Override
+		public SoftLock lockRegion() {
+			return null;
+		}
+
+		@Override
+		public void unlockItem(Object chave, SoftLock lock) {
+			evict(chave);
+		}
+
+		@Override
+		public void unlockRegion(SoftLock lock) {
+			evictAll();
+		}
+
+		@Override
+		public void remove(Object chave) {
+			evict(chave);
+		}
+
+		@Override
+		public void removeAll() {
+			evictAll();
+		}
+
+		@Override
+		public void evict(Object chave) {
+			ids.remove(chave);
+		}
+
+		@Override
+		public void evictAll() {
+			ids.clear();
+		}
+
+		@Override
+		public boolean isTransactionAware() {
+			return false;
+		}
+
+		@Override
+		public CacheDataDescription getCacheDataDescription() {
+			return descricao;
+		}
+
+		@Override
+		public String getName() {
+			return nome;
+		}
+
+		@Override
+		public void destroy() {
+			ids.clear();
+		}
+
+		@Override
+		public boolean contains(Object chave) {
+			return ids.containsKey(chave);
+		}
+
+		@Override
+		public long getSizeInMemory() {
+			return -1;
+		}
+
+		@Override
+		public long getElementCountInMemory() {
+			return ids.size();
+		}
+
+		@Override
+		public long getElementCountOnDisk() {
+			return 0;
+		}
+
+		@Override
+		public Map<Object, Object> toMap() {
+			return ids;
+		}
+
+		@Override
+		public long nextTimestamp() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public int getTimeout() {
+			return ESPERA_DE_LOCK_EM_MILIS;
+		}
+	}
+}
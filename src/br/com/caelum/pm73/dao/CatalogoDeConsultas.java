@@ -0,0 +1,96 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Mappings;
+import org.hibernate.engine.spi.NamedQueryDefinition;
+
+/**
+ * Nomes das named queries dos DAOs. O Hibernate traduz cada uma para SQL uma
+ * unica vez, ao montar a SessionFactory, e recusa subir se alguma for
+ * invalida. As consultas fixas ficam em {@code @NamedQuery} nas entidades,
+ * que usam as constantes publicas daqui como nome.
+ *
+ * Consultas sobre Leilao que aceitam um {@link PlanoDeBusca} sao registradas
+ * aqui, uma vez por plano; use {@link #comPlano(String, PlanoDeBusca)} para
+ * obter o nome.
+ */
+public final class CatalogoDeConsultas {
+
+	static final String LEILAO_POR_ID = "Leilao.porId";
+	static final String LEILAO_NOVOS = "Leilao.novos";
+	static final String LEILAO_ANTIGOS = "Leilao.antigos";
+	static final String LEILAO_POR_PERIODO = "Leilao.porPeriodo";
+	static final String LEILAO_DO_USUARIO = "Leilao.doUsuario";
+
+	// declaradas com @NamedQuery nas entidades
+	public static final String LEILAO_DISPUTADOS_ENTRE = "Leilao.disputadosEntre";
+	public static final String LEILAO_TOTAL = "Leilao.total";
+	public static final String LEILAO_POR_IDS = "Leilao.porIds";
+	public static final String LEILAO_DELETA_ENCERRADOS = "Leilao.deletaEncerrados";
+	public static final String LEILAO_IDS_ENCERRADOS = "Leilao.idsEncerrados";
+	public static final String LEILAO_VALOR_INICIAL_DO_USUARIO = "Leilao.valorInicialDoUsuario";
+	public static final String LEILAO_TERMOS_DO_INDICE = "Leilao.termosDoIndice";
+	public static final String USUARIO_POR_IDS = "Usuario.porIds";
+	public static final String USUARIO_POR_NOME_E_EMAIL = "Usuario.porNomeEEmail";
+	public static final String LANCE_DELETA_DE_ENCERRADOS = "Lance.deletaDeEncerrados";
+
+	private static final Map<String, String> CONDICOES_POR_PLANO = new LinkedHashMap<String, String>();
+	private static final int[] TAMANHOS_DE_LOTE = { 1, 5, 25, 100, 500 };
+
+	static {
+		CONDICOES_POR_PLANO.put(LEILAO_POR_ID, "where l.id = :id");
+		CONDICOES_POR_PLANO.put(LEILAO_NOVOS, "where l.usado = false");
+		CONDICOES_POR_PLANO.put(LEILAO_ANTIGOS, "where l.dataAbertura < :data");
+		CONDICOES_POR_PLANO.put(LEILAO_POR_PERIODO, "where l.dataAbertura between :inicio and :fim " +
+				"and l.encerrado = false");
+		CONDICOES_POR_PLANO.put(LEILAO_DO_USUARIO, "where exists (from Lance lance " +
+				"where lance.leilao = l and lance.usuario = :usuario)");
+	}
+
+	private CatalogoDeConsultas() {}
+
+	static String comPlano(String consulta, PlanoDeBusca plano) {
+		return consulta + "." + plano.name();
+	}
+
+	/**
+	 * Divide os ids em lotes de ate 500 e completa cada lote, repetindo o
+	 * ultimo id, ate um dos tamanhos fixos. O Hibernate expande
+	 * {@code in (:ids)} conforme o tamanho da lista e traduz cada tamanho
+	 * novo; com lotes completados sao no maximo cinco traducoes.
+	 */
+	static List<List<Integer>> emLotes(List<Integer> ids) {
+		int maximo = TAMANHOS_DE_LOTE[TAMANHOS_DE_LOTE.length - 1];
+		List<List<Integer>> lotes = new ArrayList<List<Integer>>();
+		for (int i = 0; i < ids.size(); i += maximo) {
+			List<Integer> lote = new ArrayList<Integer>(ids.subList(i, Math.min(i + maximo, ids.size())));
+			int tamanho = 0;
+			while (TAMANHOS_DE_LOTE[tamanho] < lote.size()) tamanho++;
+			Integer ultimo = lote.get(lote.size() - 1);
+			while (lote.size() < TAMANHOS_DE_LOTE[tamanho]) lote.add(ultimo);
+			lotes.add(lote);
+		}
+		return lotes;
+	}
+
+	static void registraEm(Configuration config) {
+		Mappings mappings = config.createMappings();
+
+		for (Map.Entry<String, String> condicao : CONDICOES_POR_PLANO.entrySet()) {
+			for (PlanoDeBusca plano : PlanoDeBusca.values()) {
+				registra(mappings, comPlano(condicao.getKey(), plano), plano.consulta() + condicao.getValue());
+			}
+		}
+	}
+
+	private static void registra(Mappings mappings, String nome, String hql) {
+		mappings.addQuery(nome, new NamedQueryDefinition(nome, hql, false, null, null, null, null, null,
+				false, null, new HashMap<Object, Object>()));
+	}
+}
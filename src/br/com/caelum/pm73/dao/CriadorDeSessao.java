@@ -1,41 +1,131 @@
 package br.com.caelum.pm73.dao;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.hibernate.Interceptor;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.cfg.AnnotationConfiguration;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
 
 import br.com.caelum.pm73.dominio.Lance;
 import br.com.caelum.pm73.dominio.Leilao;
 import br.com.caelum.pm73.dominio.Usuario;
 
+/**
+ * Cada url de banco tem uma unica configuracao e SessionFactory, criadas no
+ * primeiro uso e compartilhadas por todos os criadores daquela url.
+ */
 @SuppressWarnings("deprecation")
 public class CriadorDeSessao {
 
-	private static AnnotationConfiguration config;
-	private static SessionFactory sf;
-	
+	private static final String URL_PADRAO = "jdbc:hsqldb:caelum.db;shutdown=true";
+	private static final Map<String, Banco> bancos = new ConcurrentHashMap<String, Banco>();
+
+	private final String url;
+
+	/** Banco de {@code pm73.db.url}, ou caelum.db. */
+	public CriadorDeSessao() {
+		this(System.getProperty("pm73.db.url", URL_PADRAO));
+	}
+
+	public CriadorDeSessao(String url) {
+		this.url = url;
+	}
+
 	public Session getSession() {
-		if(sf == null) {
-			sf = getConfig().buildSessionFactory();
-		}
-		
-		return sf.openSession();
+		return getSessionFactory().openSession();
+	}
+
+	public Session getSession(Interceptor interceptor) {
+		return getSessionFactory().withOptions().interceptor(interceptor).openSession();
+	}
+
+	/**
+	 * Entrega ao ouvinte cada insercao so depois do commit da sua transacao.
+	 * O POST_COMMIT_INSERT do Hibernate nao serve: com ids IDENTITY ele e'
+	 * disparado mesmo quando a transacao e' desfeita.
+	 */
+	public void registraAposCommitDeInsercao(PostInsertEventListener ouvinte) {
+		getSessionFactory();
+		banco().ouvintesAposCommit.add(ouvinte);
+	}
+
+	/** Quem registrou um ouvinte deve remove-lo ao descarta-lo. */
+	public void removeAposCommitDeInsercao(PostInsertEventListener ouvinte) {
+		banco().ouvintesAposCommit.remove(ouvinte);
+	}
+
+	private SessionFactory getSessionFactory() {
+		return banco().getSessionFactory();
 	}
 
 	public Configuration getConfig() {
-		if(config == null) {
+		return banco().config;
+	}
+
+	private Banco banco() {
+		return bancos.computeIfAbsent(url, Banco::new);
+	}
+
+	private static class Banco {
+
+		final AnnotationConfiguration config;
+		final List<PostInsertEventListener> ouvintesAposCommit =
+				new CopyOnWriteArrayList<PostInsertEventListener>();
+		private SessionFactory sf;
+
+		Banco(String url) {
 			config = new AnnotationConfiguration()
 		    .addAnnotatedClass(Lance.class)
 		    .addAnnotatedClass(Leilao.class)
 		    .addAnnotatedClass(Usuario.class)
 			.setProperty("hibernate.connection.driver_class", "org.hsqldb.jdbcDriver")
-			.setProperty("hibernate.connection.url", "jdbc:hsqldb:caelum.db;shutdown=true")
+			.setProperty("hibernate.connection.url", url)
 			.setProperty("hibernate.dialect", "org.hibernate.dialect.HSQLDialect")
 			.setProperty("hibernate.connection.username", "sa")
 			.setProperty("hibernate.connection.password", "")
-			.setProperty("hibernate.show_sql", "true");
+			.setProperty("hibernate.show_sql", System.getProperty("pm73.db.show_sql", "true"))
+			// so updates e deletes vao em lote: com ids IDENTITY cada insert
+			// precisa voltar ao banco para saber o id gerado
+			.setProperty("hibernate.jdbc.batch_size", "50")
+			.setProperty("hibernate.order_updates", "true")
+			.setProperty("hibernate.cache.use_second_level_cache", "true")
+			.setProperty("hibernate.cache.region.factory_class", CacheDeNaturalId.class.getName())
+			.setProperty("hibernate.query.startup_check", "true");
+
+			CatalogoDeConsultas.registraEm(config);
+		}
+
+		synchronized SessionFactory getSessionFactory() {
+			if(sf == null) {
+				sf = config.buildSessionFactory();
+				// um unico ouvinte repassa a todos: o Hibernate recusa dois da mesma classe
+				((SessionFactoryImplementor) sf).getServiceRegistry()
+					.getService(EventListenerRegistry.class)
+					.appendListeners(EventType.POST_INSERT, new PostInsertEventListener() {
+						private static final long serialVersionUID = 1L;
+
+						@Override
+						public void onPostInsert(final PostInsertEvent evento) {
+							if (ouvintesAposCommit.isEmpty()) return;
+							AposCommit.executa(evento.getSession(), () -> {
+								for (PostInsertEventListener ouvinte : ouvintesAposCommit) {
+									ouvinte.onPostInsert(evento);
+								}
+							});
+						}
+					});
+			}
+			return sf;
 		}
-		return config;
 	}
 }
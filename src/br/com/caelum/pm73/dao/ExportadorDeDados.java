@@ -0,0 +1,323 @@
+package br.com.caelum.pm73.dao;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.zip.GZIPOutputStream;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
+
+/**
+ * Exporta LEILAO e LANCE direto do cursor JDBC para um canal, sem montar
+ * entidades. Cada linha e' codificada em um unico buffer direto reaproveitado,
+ * entao o consumo de memoria nao depende da quantidade de linhas.
+ *
+ * Valores monetarios saem em centavos no formato binario e em reais com duas
+ * casas no CSV. Valor inicial e data ausentes saem vazios no CSV e como
+ * {@code Long.MIN_VALUE} no binario.
+ */
+public class ExportadorDeDados {
+
+	public enum Formato { CSV, BINARIO }
+
+	static final int MAGICO = 0x504D3733; // "PM73"
+	static final byte VERSAO = 2;
+	static final byte TIPO_LEILAO = 1;
+	static final byte TIPO_LANCE = 2;
+
+	private static final int TAMANHO_DO_BUFFER = 1 << 16;
+	private static final int LINHAS_POR_BUSCA = 1000;
+
+	private static final String SQL_LEILOES = "select ID, NOME, VALORINICIAL_CENTAVOS, DONO_ID, DATAABERTURA, USADO, ENCERRADO " +
+			"from LEILAO order by ID";
+	private static final String SQL_LANCES = "select ID, LEILAO_ID, USUARIO_ID, DATA, VALOR_CENTAVOS " +
+			"from LANCE order by ID";
+
+	private final Session session;
+
+	public ExportadorDeDados(Session session) {
+		this.session = session;
+	}
+
+	public long exportaLeiloes(Path destino, Formato formato, boolean comprimido) throws IOException {
+		try (WritableByteChannel canal = abre(destino, comprimido)) {
+			return exportaLeiloes(canal, formato);
+		}
+	}
+
+	public long exportaLances(Path destino, Formato formato, boolean comprimido) throws IOException {
+		try (WritableByteChannel canal = abre(destino, comprimido)) {
+			return exportaLances(canal, formato);
+		}
+	}
+
+	public long exportaLeiloes(WritableByteChannel canal, Formato formato) throws IOException {
+		return exporta(SQL_LEILOES, new Saida(canal), formato, true);
+	}
+
+	public long exportaLances(WritableByteChannel canal, Formato formato) throws IOException {
+		return exporta(SQL_LANCES, new Saida(canal), formato, false);
+	}
+
+	private WritableByteChannel abre(Path destino, boolean comprimido) throws IOException {
+		if (!comprimido) {
+			return FileChannel.open(destino, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		OutputStream arquivo = Files.newOutputStream(destino);
+		return Channels.newChannel(new GZIPOutputStream(arquivo, TAMANHO_DO_BUFFER));
+	}
+
+	private long exporta(final String sql, final Saida saida, final Formato formato, final boolean leiloes)
+			throws IOException {
+		try {
+			return session.doReturningWork(new ReturningWork<Long>() {
+				@Override
+				public Long execute(Connection conexao) throws SQLException {
+					try (PreparedStatement ps = conexao.prepareStatement(sql,
+							ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+						ps.setFetchSize(LINHAS_POR_BUSCA);
+						try (ResultSet rs = ps.executeQuery()) {
+							return percorre(rs, saida, formato, leiloes);
+						}
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private long percorre(ResultSet rs, Saida saida, Formato formato, boolean leiloes)
+			throws SQLException, IOException {
+		if (formato == Formato.CSV) {
+			saida.texto(leiloes ? "id,nome,valorInicial,donoId,dataAbertura,usado,encerrado\n"
+					: "id,leilaoId,usuarioId,data,valor\n");
+		} else {
+			saida.garante(6);
+			saida.buffer.putInt(MAGICO).put(VERSAO).put(leiloes ? TIPO_LEILAO : TIPO_LANCE);
+		}
+
+		long linhas = 0;
+		while (rs.next()) {
+			if (leiloes) {
+				escreveLeilao(rs, saida, formato);
+			} else {
+				escreveLance(rs, saida, formato);
+			}
+			linhas++;
+		}
+		saida.esvazia();
+		return linhas;
+	}
+
+	private void escreveLeilao(ResultSet rs, Saida saida, Formato formato) throws SQLException, IOException {
+		int id = rs.getInt(1);
+		String nome = rs.getString(2);
+		long valorInicial = rs.getLong(3);
+		if (rs.wasNull()) valorInicial = Long.MIN_VALUE;
+		int donoId = rs.getInt(4);
+		long dataAbertura = millis(rs.getTimestamp(5));
+		boolean usado = rs.getBoolean(6);
+		boolean encerrado = rs.getBoolean(7);
+
+		if (formato == Formato.CSV) {
+			saida.numero(id).separador();
+			saida.campoCsv(nome).separador();
+			if (valorInicial != Long.MIN_VALUE) saida.dinheiro(valorInicial);
+			saida.separador();
+			if (donoId != 0) saida.numero(donoId);
+			saida.separador();
+			if (dataAbertura != Long.MIN_VALUE) saida.numero(dataAbertura);
+			saida.separador();
+			saida.texto(usado ? "true" : "false").separador();
+			saida.texto(encerrado ? "true" : "false").fimDeLinha();
+		} else {
+			int bytesDoNome = nome == null ? 0 : tamanhoEmUtf8(nome);
+			saida.garante(27 + bytesDoNome);
+			saida.buffer.putInt(id).putInt(donoId).putLong(dataAbertura)
+				.putLong(valorInicial)
+				.put((byte) ((usado ? 1 : 0) | (encerrado ? 2 : 0)))
+				.putShort((short) bytesDoNome);
+			if (nome != null) saida.utf8(nome);
+		}
+	}
+
+	private void escreveLance(ResultSet rs, Saida saida, Formato formato) throws SQLException, IOException {
+		int id = rs.getInt(1);
+		int leilaoId = rs.getInt(2);
+		int usuarioId = rs.getInt(3);
+		long data = millis(rs.getTimestamp(4));
+		long valor = rs.getLong(5);
+
+		if (formato == Formato.CSV) {
+			saida.numero(id).separador();
+			if (leilaoId != 0) saida.numero(leilaoId);
+			saida.separador();
+			if (usuarioId != 0) saida.numero(usuarioId);
+			saida.separador();
+			if (data != Long.MIN_VALUE) saida.numero(data);
+			saida.separador();
+			saida.dinheiro(valor).fimDeLinha();
+		} else {
+			saida.garante(28);
+			saida.buffer.putInt(id).putInt(leilaoId).putInt(usuarioId).putLong(data).putLong(valor);
+		}
+	}
+
+	private static long millis(Timestamp data) {
+		return data == null ? Long.MIN_VALUE : data.getTime();
+	}
+
+	private static int tamanhoEmUtf8(String texto) {
+		int tamanho = 0;
+		for (int i = 0; i < texto.length(); i++) {
+			char c = texto.charAt(i);
+			if (c < 0x80) tamanho += 1;
+			else if (c < 0x800) tamanho += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < texto.length()) { tamanho += 4; i++; }
+			else tamanho += 3;
+		}
+		return tamanho;
+	}
+
+	/**
+	 * Buffer direto de tamanho fixo que e' descarregado no canal sempre que
+	 * nao houver espaco para o proximo registro.
+	 */
+	private static class Saida {
+
+		private final WritableByteChannel canal;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(TAMANHO_DO_BUFFER);
+
+		Saida(WritableByteChannel canal) {
+			this.canal = canal;
+		}
+
+		void garante(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) esvazia();
+		}
+
+		void esvazia() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				canal.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		Saida separador() throws IOException {
+			garante(1);
+			buffer.put((byte) ',');
+			return this;
+		}
+
+		Saida fimDeLinha() throws IOException {
+			garante(1);
+			buffer.put((byte) '\n');
+			return this;
+		}
+
+		Saida numero(long valor) throws IOException {
+			garante(20);
+			if (valor == Long.MIN_VALUE) return texto(Long.toString(valor));
+			if (valor < 0) {
+				buffer.put((byte) '-');
+				valor = -valor;
+			}
+			long divisor = 1;
+			while (valor / divisor >= 10) divisor *= 10;
+			for (; divisor > 0; divisor /= 10) {
+				buffer.put((byte) ('0' + (valor / divisor) % 10));
+			}
+			return this;
+		}
+
+		/** Centavos escritos como reais com duas casas, sem passar por double. */
+		Saida dinheiro(long centavos) throws IOException {
+			if (centavos < 0) {
+				garante(1);
+				buffer.put((byte) '-');
+			}
+			long absoluto = Math.abs(centavos);
+			numero(absoluto / 100);
+			garante(3);
+			buffer.put((byte) '.');
+			buffer.put((byte) ('0' + absoluto % 100 / 10));
+			buffer.put((byte) ('0' + absoluto % 10));
+			return this;
+		}
+
+		Saida texto(String texto) throws IOException {
+			utf8(texto);
+			return this;
+		}
+
+		Saida campoCsv(String texto) throws IOException {
+			if (texto == null) return this;
+			boolean precisaDeAspas = false;
+			for (int i = 0; i < texto.length() && !precisaDeAspas; i++) {
+				char c = texto.charAt(i);
+				precisaDeAspas = c == ',' || c == '"' || c == '\n' || c == '\r';
+			}
+			if (!precisaDeAspas) return texto(texto);
+
+			garante(1);
+			buffer.put((byte) '"');
+			for (int i = 0; i < texto.length(); i++) {
+				char c = texto.charAt(i);
+				if (c == '"') {
+					garante(1);
+					buffer.put((byte) '"');
+				}
+				i = caractere(texto, i);
+			}
+			garante(1);
+			buffer.put((byte) '"');
+			return this;
+		}
+
+		void utf8(String texto) throws IOException {
+			for (int i = 0; i < texto.length(); i++) {
+				i = caractere(texto, i);
+			}
+		}
+
+		private int caractere(String texto, int i) throws IOException {
+			garante(4);
+			char c = texto.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xC0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < texto.length()) {
+				int ponto = Character.toCodePoint(c, texto.charAt(++i));
+				buffer.put((byte) (0xF0 | (ponto >> 18)));
+				buffer.put((byte) (0x80 | ((ponto >> 12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((ponto >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (ponto & 0x3F)));
+			} else {
+				buffer.put((byte) (0xE0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+			return i;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package br.com.caelum.pm73.dao;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dominio.Leilao;
+
+/**
+ * Indice invertido em memoria sobre o nome dos leiloes. Cada termo do nome
+ * (sem acento e em minusculas) aponta para os ids que o contem; como os termos
+ * ficam ordenados, a busca por prefixo e' um intervalo do mapa.
+ *
+ * Leituras nao bloqueiam; escritas sao serializadas para que um leilao nunca
+ * apareca indexado pela metade.
+ */
+public class IndiceDeLeiloes {
+
+	private static final Pattern SEPARADORES = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+	private static final Pattern ACENTOS = Pattern.compile("\\p{M}+");
+	private static final int LINHAS_POR_BUSCA = 1000;
+
+	private final ConcurrentSkipListMap<String, Set<Integer>> idsPorTermo = new ConcurrentSkipListMap<String, Set<Integer>>();
+	private final Map<Integer, Entrada> entradas = new ConcurrentHashMap<Integer, Entrada>();
+
+	private static class Entrada {
+		final List<String> termos;
+		final boolean encerrado;
+		final boolean usado;
+
+		Entrada(List<String> termos, boolean encerrado, boolean usado) {
+			this.termos = termos;
+			this.encerrado = encerrado;
+			this.usado = usado;
+		}
+	}
+
+	/**
+	 * Monta o indice percorrendo a tabela LEILAO com um cursor somente para
+	 * frente, sem carregar as entidades.
+	 */
+	public static IndiceDeLeiloes constroi(Session session) {
+		IndiceDeLeiloes indice = new IndiceDeLeiloes();
+		ScrollableResults linhas = session
+				.getNamedQuery(CatalogoDeConsultas.LEILAO_TERMOS_DO_INDICE)
+				.setReadOnly(true)
+				.setFetchSize(LINHAS_POR_BUSCA)
+				.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (linhas.next()) {
+				indice.indexa(linhas.getInteger(0), linhas.getString(1),
+						linhas.getBoolean(2), linhas.getBoolean(3));
+			}
+		} finally {
+			linhas.close();
+		}
+		return indice;
+	}
+
+	public void indexa(Leilao leilao) {
+		indexa(leilao.getId(), leilao.getNome(), leilao.isEncerrado(), leilao.isUsado());
+	}
+
+	public synchronized void indexa(int id, String nome, boolean encerrado, boolean usado) {
+		remove(id);
+		List<String> termos = termos(nome);
+		entradas.put(id, new Entrada(termos, encerrado, usado));
+		for (String termo : termos) {
+			Set<Integer> ids = idsPorTermo.get(termo);
+			if (ids == null) {
+				ids = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+				idsPorTermo.put(termo, ids);
+			}
+			ids.add(id);
+		}
+	}
+
+	public synchronized void remove(int id) {
+		Entrada entrada = entradas.remove(id);
+		if (entrada == null) return;
+
+		for (String termo : entrada.termos) {
+			Set<Integer> ids = idsPorTermo.get(termo);
+			if (ids == null) continue;
+			ids.remove(id);
+			if (ids.isEmpty()) idsPorTermo.remove(termo);
+		}
+	}
+
+	/**
+	 * Devolve, em ordem crescente, os ids dos leiloes cujo nome tem, para cada
+	 * termo da consulta, algum termo que comece com ele. Filtros nulos sao
+	 * ignorados.
+	 */
+	public List<Integer> busca(String consulta, Boolean encerrado, Boolean usado) {
+		List<String> termosDaConsulta = termos(consulta);
+		if (termosDaConsulta.isEmpty()) return Collections.emptyList();
+
+		Set<Integer> resultado = null;
+		for (String termo : termosDaConsulta) {
+			Set<Integer> comPrefixo = new HashSet<Integer>();
+			for (Set<Integer> ids : idsPorTermo.subMap(termo, true, termo + Character.MAX_VALUE, true).values()) {
+				comPrefixo.addAll(ids);
+			}
+			if (resultado == null) {
+				resultado = comPrefixo;
+			} else {
+				resultado.retainAll(comPrefixo);
+			}
+			if (resultado.isEmpty()) return Collections.emptyList();
+		}
+
+		List<Integer> ids = new ArrayList<Integer>(resultado.size());
+		for (Integer id : resultado) {
+			Entrada entrada = entradas.get(id);
+			if (entrada == null) continue;
+			if (encerrado != null && entrada.encerrado != encerrado) continue;
+			if (usado != null && entrada.usado != usado) continue;
+			ids.add(id);
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	/** Se o nome tem, para cada termo da consulta, algum termo que comece com ele. */
+	static boolean atende(String nome, String consulta) {
+		List<String> termosDoNome = termos(nome);
+		for (String termo : termos(consulta)) {
+			boolean achou = false;
+			for (String doNome : termosDoNome) {
+				if (doNome.startsWith(termo)) {
+					achou = true;
+					break;
+				}
+			}
+			if (!achou) return false;
+		}
+		return true;
+	}
+
+	public int tamanho() {
+		return entradas.size();
+	}
+
+	static List<String> termos(String texto) {
+		if (texto == null) return Collections.emptyList();
+
+		String normalizado = ACENTOS.matcher(Normalizer.normalize(texto, Normalizer.Form.NFD))
+				.replaceAll("").toLowerCase(Locale.ROOT);
+		List<String> termos = new ArrayList<String>();
+		for (String termo : SEPARADORES.split(normalizado)) {
+			if (!termo.isEmpty() && !termos.contains(termo)) termos.add(termo);
+		}
+		return termos;
+	}
+}
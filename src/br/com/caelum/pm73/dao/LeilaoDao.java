@@ -1,102 +1,219 @@
 package br.com.caelum.pm73.dao;
 
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LANCE_DELETA_DE_ENCERRADOS;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_ANTIGOS;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_DELETA_ENCERRADOS;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_DISPUTADOS_ENTRE;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_DO_USUARIO;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_IDS_ENCERRADOS;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_NOVOS;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_POR_ID;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_POR_IDS;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_POR_PERIODO;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_TOTAL;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_VALOR_INICIAL_DO_USUARIO;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.comPlano;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.emLotes;
+
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
 
 import org.hibernate.Session;
 
+import br.com.caelum.pm73.dominio.Dinheiro;
 import br.com.caelum.pm73.dominio.Lance;
 import br.com.caelum.pm73.dominio.Leilao;
 import br.com.caelum.pm73.dominio.Usuario;
 
+/**
+ * Com um {@link IndiceDeLeiloes}, as alteracoes no indice so sao aplicadas
+ * depois do commit da transacao; uma transacao desfeita nao deixa rastro nele.
+ * Por isso, com indice, toda alteracao exige uma transacao ativa.
+ */
 public class LeilaoDao {
 
 	private final Session session;
+	private final IndiceDeLeiloes indice;
 
+	/** Usa a sessao da {@link UnidadeDeTrabalho} aberta na thread a cada chamada. */
+	public LeilaoDao() {
+		this(null, null);
+	}
+	
+	public LeilaoDao(IndiceDeLeiloes indice) {
+		this(null, indice);
+	}
+	
 	public LeilaoDao(Session session) {
+		this(session, null);
+	}
+	
+	public LeilaoDao(Session session, IndiceDeLeiloes indice) {
 		this.session = session;
+		this.indice = indice;
 	}
 	
 	public void salvar(Leilao leilao) {
-		session.save(leilao);
+		if(indice != null) AposCommit.executa(session(), () -> indice.indexa(leilao));
+		
+		session().save(leilao);
 		
 		for(Lance lance : leilao.getLances()) {
-			session.save(lance);
+			session().save(lance);
 		}
 	}
 	
 	public Leilao porId(int id) {
-		return (Leilao) session.get(Leilao.class, id);
+		return (Leilao) session().get(Leilao.class, id);
+	}
+	
+	public Leilao porId(int id, PlanoDeBusca plano) {
+		return (Leilao) session().getNamedQuery(comPlano(LEILAO_POR_ID, plano))
+				.setParameter("id", id)
+				.uniqueResult();
 	}
 	
-	@SuppressWarnings("unchecked")
 	public List<Leilao> novos() {
-		return session.createQuery("from Leilao l where usado = false")
-				.list();
+		return novos(PlanoDeBusca.LISTAGEM);
 	}
 	
 	@SuppressWarnings("unchecked")
+	public List<Leilao> novos(PlanoDeBusca plano) {
+		return session().getNamedQuery(comPlano(LEILAO_NOVOS, plano))
+				.list();
+	}
+	
 	public List<Leilao> antigos() {
+		return antigos(PlanoDeBusca.LISTAGEM);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<Leilao> antigos(PlanoDeBusca plano) {
 		Calendar seteDiasAtras = Calendar.getInstance();
 		seteDiasAtras.add(Calendar.DAY_OF_MONTH, -7);
 		
-		return session.createQuery("from Leilao l where dataAbertura < :data")
+		return session().getNamedQuery(comPlano(LEILAO_ANTIGOS, plano))
 				.setParameter("data", seteDiasAtras)
 				.list();
 	}
 	
-	@SuppressWarnings("unchecked")
 	public List<Leilao> porPeriodo(Calendar inicio, Calendar fim) {
-		return session.createQuery("from Leilao l where l.dataAbertura " +
-				"between :inicio and :fim and l.encerrado = false")
+		return porPeriodo(inicio, fim, PlanoDeBusca.LISTAGEM);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<Leilao> porPeriodo(Calendar inicio, Calendar fim, PlanoDeBusca plano) {
+		return session().getNamedQuery(comPlano(LEILAO_POR_PERIODO, plano))
 				.setParameter("inicio", inicio)
 				.setParameter("fim", fim)
 				.list();
 	}
 	
-	@SuppressWarnings("unchecked")
 	public List<Leilao> disputadosEntre(double inicio, double fim) {
-		return session.createQuery("from Leilao l where l.valorInicial " +
-				"between :inicio and :fim and l.encerrado = false " +
-				"and size(l.lances) >= 3")
-				.setParameter("inicio", inicio)
-				.setParameter("fim", fim)
+		return disputadosEntre(Dinheiro.emReais(inicio), Dinheiro.emReais(fim));
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<Leilao> disputadosEntre(Dinheiro inicio, Dinheiro fim) {
+		return session().getNamedQuery(LEILAO_DISPUTADOS_ENTRE)
+				.setLong("inicio", inicio.getCentavos())
+				.setLong("fim", fim.getCentavos())
 				.list();
 	}
 	
 	public Long total() {
-		return (Long) session.createQuery("select count(l) from Leilao l where l.encerrado = false")
+		return (Long) session().getNamedQuery(LEILAO_TOTAL)
 				.uniqueResult();
 	}
 	
+	/**
+	 * Busca pelo indice e confirma no banco: os filtros sao aplicados de novo
+	 * na carga e o nome carregado e' comparado de novo com a consulta, porque
+	 * o indice so conhece o que passou por este DAO. Um leilao renomeado sem
+	 * {@link #atualiza(Leilao)} so e' achado pelo nome novo depois de
+	 * reindexado.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Leilao> buscaPorNome(String consulta, Boolean encerrado, Boolean usado) {
+		if(indice == null) {
+			throw new IllegalStateException("LeilaoDao criado sem IndiceDeLeiloes");
+		}
+		
+		List<Integer> ids = indice.busca(consulta, encerrado, usado);
+		if(ids.isEmpty()) return Collections.emptyList();
+		
+		List<Leilao> leiloes = new ArrayList<Leilao>(ids.size());
+		for(List<Integer> lote : emLotes(ids)) {
+			List<Leilao> carregados = session().getNamedQuery(LEILAO_POR_IDS)
+					.setParameterList("ids", lote)
+					.setBoolean("qualquerEncerrado", encerrado == null)
+					.setBoolean("encerrado", encerrado != null && encerrado)
+					.setBoolean("qualquerUsado", usado == null)
+					.setBoolean("usado", usado != null && usado)
+					.list();
+			for(Leilao leilao : carregados) {
+				if(IndiceDeLeiloes.atende(leilao.getNome(), consulta)) leiloes.add(leilao);
+			}
+		}
+		return leiloes;
+	}
+	
 	public void atualiza(Leilao leilao) {
-		session.merge(leilao);
+		if(indice != null) AposCommit.executa(session(), () -> indice.indexa(leilao));
+		
+		session().merge(leilao);
 	}
 	
 	public void deleta(Leilao leilao) {
-		session.delete(leilao);
+		int id = leilao.getId();
+		if(indice != null) AposCommit.executa(session(), () -> indice.remove(id));
+		
+		session().delete(leilao);
 	}
 	
+	@SuppressWarnings("unchecked")
 	public void deletaEncerrados() {
-		session
-			.createQuery("delete from Leilao l where l.encerrado = true")
+		if(indice != null) {
+			List<Integer> encerrados = session().getNamedQuery(LEILAO_IDS_ENCERRADOS).list();
+			AposCommit.executa(session(), () -> {
+				for(Integer id : encerrados) indice.remove(id);
+			});
+		}
+		
+		session()
+			.getNamedQuery(LANCE_DELETA_DE_ENCERRADOS)
+			.executeUpdate();
+		session()
+			.getNamedQuery(LEILAO_DELETA_ENCERRADOS)
 			.executeUpdate();
 	}
 	
-	@SuppressWarnings("unchecked")
 	public List<Leilao> listaLeiloesDoUsuario(Usuario usuario) {
-		return session.createQuery("select lance.leilao " +
-								   "from Lance lance " +
-								   "where lance.usuario = :usuario")
+		return listaLeiloesDoUsuario(usuario, PlanoDeBusca.LISTAGEM);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<Leilao> listaLeiloesDoUsuario(Usuario usuario, PlanoDeBusca plano) {
+		return session().getNamedQuery(comPlano(LEILAO_DO_USUARIO, plano))
 				.setParameter("usuario", usuario).list();
 	}
 	
 	public double getValorInicialMedioDoUsuario(Usuario usuario) {
-		return (Double) session.createQuery("select avg(lance.leilao.valorInicial) " +
-											"from Lance lance " +
-											"where lance.usuario = :usuario")
+		Object[] somaEQuantidade = (Object[]) session().getNamedQuery(LEILAO_VALOR_INICIAL_DO_USUARIO)
 					.setParameter("usuario", usuario)
 					.uniqueResult();
+		
+		Long centavos = (Long) somaEQuantidade[0];
+		long quantidade = (Long) somaEQuantidade[1];
+		if(quantidade == 0) return 0;
+		
+		return centavos / 100.0 / quantidade;
+	}
+	
+	private Session session() {
+		return session != null ? session : UnidadeDeTrabalho.sessaoAtual();
 	}
 	
 }
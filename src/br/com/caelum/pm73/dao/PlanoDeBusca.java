@@ -0,0 +1,33 @@
+package br.com.caelum.pm73.dao;
+
+/**
+ * Quanto do grafo de um {@link br.com.caelum.pm73.dominio.Leilao} uma
+ * consulta do {@link LeilaoDao} traz junto, na mesma ida ao banco. Tudo o
+ * que ficar de fora e' carregado sob demanda.
+ */
+public enum PlanoDeBusca {
+
+	/** So as colunas de LEILAO; dono e lances ficam para depois. */
+	LISTAGEM("", false),
+
+	/** Leilao e dono. */
+	DETALHE_COM_DONO("left join fetch l.dono ", false),
+
+	/** Leilao, dono, lances e quem deu cada lance. */
+	DETALHE_COM_LANCES("left join fetch l.dono " +
+			"left join fetch l.lances lances " +
+			"left join fetch lances.usuario ", true);
+
+	private final String joins;
+	private final boolean repeteLeiloes;
+
+	private PlanoDeBusca(String joins, boolean repeteLeiloes) {
+		this.joins = joins;
+		this.repeteLeiloes = repeteLeiloes;
+	}
+
+	/** Inicio de uma consulta HQL sobre Leilao com o alias {@code l}. */
+	String consulta() {
+		return (repeteLeiloes ? "select distinct l " : "select l ") + "from Leilao l " + joins;
+	}
+}
@@ -0,0 +1,130 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.hibernate.PessimisticLockException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.exception.LockAcquisitionException;
+
+/**
+ * Abre uma sessao e uma transacao em volta de um trabalho e deixa a sessao
+ * presa a thread enquanto ele roda, para que os DAOs criados sem sessao a
+ * encontrem sozinhos:
+ *
+ * <pre>
+ * Leilao leilao = unidade.executarEmTransacao(() -> new LeilaoDao().porId(id));
+ * </pre>
+ *
+ * A conexao so e' tomada no inicio da transacao e volta ao pool no commit ou
+ * rollback, quando a sessao e' fechada; entidades devolvidas saem destacadas.
+ * Conflitos transitorios (lock, deadlock, serializacao) desfazem a transacao e
+ * repetem o trabalho em uma sessao nova, entao ele pode rodar mais de uma vez
+ * e nao deve ter efeitos fora do banco.
+ */
+public class UnidadeDeTrabalho {
+
+	private static final ThreadLocal<Session> SESSAO = new ThreadLocal<Session>();
+	private static final int TENTATIVAS = 3;
+	private static final long ESPERA_INICIAL_EM_MILIS = 5;
+
+	private final CriadorDeSessao criador;
+	private final int tentativas;
+
+	public UnidadeDeTrabalho() {
+		this(new CriadorDeSessao(), TENTATIVAS);
+	}
+
+	public UnidadeDeTrabalho(CriadorDeSessao criador, int tentativas) {
+		this.criador = criador;
+		this.tentativas = tentativas;
+	}
+
+	/** Sessao da unidade de trabalho aberta nesta thread. */
+	public static Session sessaoAtual() {
+		Session session = SESSAO.get();
+		if (session == null) {
+			throw new IllegalStateException("Nenhuma unidade de trabalho aberta nesta thread");
+		}
+		return session;
+	}
+
+	public void executarEmTransacao(Runnable trabalho) {
+		executarEmTransacao(() -> {
+			trabalho.run();
+			return null;
+		});
+	}
+
+	/**
+	 * Executa o trabalho em uma transacao. Chamado de dentro de outra unidade,
+	 * apenas participa dela: quem abriu a transacao decide o commit e as
+	 * novas tentativas.
+	 */
+	public <T> T executarEmTransacao(Supplier<T> trabalho) {
+		if (SESSAO.get() != null) return trabalho.get();
+
+		for (int tentativa = 1; ; tentativa++) {
+			try {
+				return executaUmaVez(trabalho);
+			} catch (RuntimeException e) {
+				if (tentativa >= tentativas || !ehConflitoTransitorio(e)) throw e;
+				espera(tentativa, e);
+			}
+		}
+	}
+
+	private <T> T executaUmaVez(Supplier<T> trabalho) {
+		Session session = criador.getSession();
+		SESSAO.set(session);
+		try {
+			Transaction transacao = session.beginTransaction();
+			try {
+				T resultado = trabalho.get();
+				transacao.commit();
+				return resultado;
+			} catch (Throwable e) {
+				// sem conferir isActive(): um commit que falha deixa a transacao
+				// inativa, mas ainda aberta na conexao que volta ao pool
+				desfaz(transacao, e);
+				throw e;
+			}
+		} finally {
+			SESSAO.remove();
+			session.close();
+		}
+	}
+
+	private static void desfaz(Transaction transacao, Throwable erro) {
+		try {
+			transacao.rollback();
+		} catch (RuntimeException falhaNoRollback) {
+			erro.addSuppressed(falhaNoRollback);
+		}
+	}
+
+	private void espera(int tentativa, RuntimeException conflito) {
+		long limite = ESPERA_INICIAL_EM_MILIS << (tentativa - 1);
+		try {
+			TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(limite + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw conflito;
+		}
+	}
+
+	/** Lock nao obtido, deadlock ou falha de serializacao em qualquer nivel da causa. */
+	public static boolean ehConflitoTransitorio(Throwable erro) {
+		for (Throwable causa = erro; causa != null; causa = causa.getCause()) {
+			if (causa instanceof LockAcquisitionException || causa instanceof PessimisticLockException) return true;
+			if (causa instanceof SQLException) {
+				String estado = ((SQLException) causa).getSQLState();
+				if (estado != null && estado.startsWith("40")) return true;
+			}
+		}
+		return false;
+	}
+}
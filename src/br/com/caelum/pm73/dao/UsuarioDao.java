@@ -1,5 +1,12 @@
 package br.com.caelum.pm73.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
 import org.hibernate.Session;
 
 import br.com.caelum.pm73.dominio.Usuario;
@@ -8,30 +15,76 @@ public class UsuarioDao {
 
 	private final Session session;
 
+	/** Usa a sessao da {@link UnidadeDeTrabalho} aberta na thread a cada chamada. */
+	public UsuarioDao() {
+		this(null);
+	}
+	
 	public UsuarioDao(Session session) {
 		this.session = session;
 	}
 	
 	public Usuario porId(int id) {
-		return (Usuario) session.load(Usuario.class, id);
+		return (Usuario) session().load(Usuario.class, id);
 	}
 	
+	@SuppressWarnings("unchecked")
+	public List<Usuario> porIds(Collection<Integer> ids) {
+		List<Integer> distintos = new ArrayList<Integer>(new LinkedHashSet<Integer>(ids));
+		Map<Integer, Usuario> encontrados = new HashMap<Integer, Usuario>();
+		
+		for(List<Integer> lote : CatalogoDeConsultas.emLotes(distintos)) {
+			List<Usuario> usuarios = session().getNamedQuery(CatalogoDeConsultas.USUARIO_POR_IDS)
+					.setParameterList("ids", lote)
+					.list();
+			for(Usuario usuario : usuarios) {
+				encontrados.put(usuario.getId(), usuario);
+			}
+		}
+		
+		List<Usuario> usuarios = new ArrayList<Usuario>(encontrados.size());
+		for(Integer id : distintos) {
+			Usuario usuario = encontrados.get(id);
+			if(usuario != null) usuarios.add(usuario);
+		}
+		return usuarios;
+	}
+	
+	/**
+	 * Busca pela chave unica (nome, email). A resolucao para o id fica no
+	 * {@link CacheDeNaturalId}, entao so a primeira busca de cada usuario
+	 * paga a consulta do id; as seguintes so carregam a entidade. Como o
+	 * cache pode estar velho para um usuario renomeado, o resultado e'
+	 * conferido e, se nao bater, a busca vai direto ao banco.
+	 */
 	public Usuario porNomeEEmail(String nome, String email) {
-		return (Usuario) session.createQuery("from Usuario u where u.nome = :nome and u.email = :email")
+		Usuario usuario = (Usuario) session().byNaturalId(Usuario.class)
+				.using("nome", nome)
+				.using("email", email)
+				.load();
+		if(usuario == null || (nome.equals(usuario.getNome()) && email.equals(usuario.getEmail()))) {
+			return usuario;
+		}
+		
+		return (Usuario) session().getNamedQuery(CatalogoDeConsultas.USUARIO_POR_NOME_E_EMAIL)
 				.setParameter("nome", nome)
 				.setParameter("email", email)
 				.uniqueResult();
 	}
 	
 	public void salvar(Usuario usuario) {
-		session.save(usuario);
+		session().save(usuario);
 	}
 	
 	public void atualizar(Usuario usuario) {
-		session.merge(usuario);
+		session().merge(usuario);
 	}
 	
 	public void deletar(Usuario usuario) {
-		session.delete(usuario);
+		session().delete(usuario);
+	}
+	
+	private Session session() {
+		return session != null ? session : UnidadeDeTrabalho.sessaoAtual();
 	}
 }
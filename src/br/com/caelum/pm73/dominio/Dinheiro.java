@@ -0,0 +1,78 @@
+package br.com.caelum.pm73.dominio;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Valor monetario em centavos. Imutavel; quem so precisa do numero deve usar
+ * {@link #getCentavos()} e evitar criar instancias no caminho quente.
+ */
+public final class Dinheiro implements Comparable<Dinheiro> {
+
+	public static final Dinheiro ZERO = new Dinheiro(0);
+
+	private final long centavos;
+
+	private Dinheiro(long centavos) {
+		this.centavos = centavos;
+	}
+
+	public static Dinheiro emCentavos(long centavos) {
+		return centavos == 0 ? ZERO : new Dinheiro(centavos);
+	}
+
+	/**
+	 * Parte da representacao decimal mais curta do double (a de
+	 * {@link Double#toString}), nao do valor binario exato, e arredonda para
+	 * centavos com {@link RoundingMode#HALF_EVEN}. 0.125 vira 12 centavos e
+	 * 0.135 vira 14. A migracao das colunas antigas usa este mesmo metodo.
+	 */
+	public static Dinheiro emReais(double reais) {
+		return emReais(BigDecimal.valueOf(reais));
+	}
+
+	/** Arredonda para centavos com {@link RoundingMode#HALF_EVEN}. */
+	public static Dinheiro emReais(BigDecimal reais) {
+		return emCentavos(reais.movePointRight(2).setScale(0, RoundingMode.HALF_EVEN).longValueExact());
+	}
+
+	public long getCentavos() {
+		return centavos;
+	}
+
+	public BigDecimal getReais() {
+		return BigDecimal.valueOf(centavos, 2);
+	}
+
+	public double emReais() {
+		return centavos / 100.0;
+	}
+
+	public Dinheiro mais(Dinheiro outro) {
+		return emCentavos(Math.addExact(centavos, outro.centavos));
+	}
+
+	public Dinheiro menos(Dinheiro outro) {
+		return emCentavos(Math.subtractExact(centavos, outro.centavos));
+	}
+
+	@Override
+	public int compareTo(Dinheiro outro) {
+		return Long.compare(centavos, outro.centavos);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof Dinheiro && ((Dinheiro) obj).centavos == centavos;
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(centavos);
+	}
+
+	@Override
+	public String toString() {
+		return getReais().toPlainString();
+	}
+}
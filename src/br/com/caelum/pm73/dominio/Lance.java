@@ -1,36 +1,50 @@
 package br.com.caelum.pm73.dominio;
 
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LANCE_DELETA_DE_ENCERRADOS;
+
 import java.util.Calendar;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQuery;
 
 @Entity
+@NamedQuery(name = LANCE_DELETA_DE_ENCERRADOS, query = "delete from Lance lance where lance.leilao.id in " +
+		"(select l.id from Leilao l where l.encerrado = true)")
 public class Lance {
 
 	@Id @GeneratedValue
 	private int id;
-	private double valor;
+	@Column(name = "VALOR_CENTAVOS", nullable = false)
+	private long valor;
 	private Calendar data;
-	@ManyToOne
+	@ManyToOne(fetch = FetchType.LAZY)
 	private Usuario usuario;
-	@ManyToOne
+	@ManyToOne(fetch = FetchType.LAZY)
 	private Leilao leilao;
 	
 	protected Lance() {}
 	public Lance(Calendar data, Usuario usuario, double valor) {
+		this(data, usuario, Dinheiro.emReais(valor));
+	}
+	public Lance(Calendar data, Usuario usuario, Dinheiro valor) {
 		this.usuario = usuario;
 		this.data = data;
-		this.valor = valor;
+		this.valor = valor.getCentavos();
 	}
 	
-	public double getValor() {
+	public Dinheiro getValor() {
+		return Dinheiro.emCentavos(valor);
+	}
+	public long getValorEmCentavos() {
 		return valor;
 	}
-	public void setValor(double valor) {
-		this.valor = valor;
+	public void setValor(Dinheiro valor) {
+		this.valor = valor.getCentavos();
 	}
 	public Leilao getLeilao() {
 		return leilao;
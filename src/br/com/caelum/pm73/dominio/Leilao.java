@@ -1,24 +1,51 @@
 package br.com.caelum.pm73.dominio;
 
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_DELETA_ENCERRADOS;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_DISPUTADOS_ENTRE;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_IDS_ENCERRADOS;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_POR_IDS;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_TERMOS_DO_INDICE;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_TOTAL;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.LEILAO_VALOR_INICIAL_DO_USUARIO;
+
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 
 import javax.persistence.CascadeType;
+import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 
 @Entity
+@NamedQueries({
+	@NamedQuery(name = LEILAO_DISPUTADOS_ENTRE, query = "from Leilao l where l.valorInicial " +
+			"between :inicio and :fim and l.encerrado = false and size(l.lances) >= 3"),
+	@NamedQuery(name = LEILAO_TOTAL, query = "select count(l) from Leilao l where l.encerrado = false"),
+	@NamedQuery(name = LEILAO_POR_IDS, query = "from Leilao l where l.id in (:ids) " +
+			"and (:qualquerEncerrado = true or l.encerrado = :encerrado) " +
+			"and (:qualquerUsado = true or l.usado = :usado) order by l.id"),
+	@NamedQuery(name = LEILAO_DELETA_ENCERRADOS, query = "delete from Leilao l where l.encerrado = true"),
+	@NamedQuery(name = LEILAO_IDS_ENCERRADOS, query = "select l.id from Leilao l where l.encerrado = true"),
+	@NamedQuery(name = LEILAO_VALOR_INICIAL_DO_USUARIO, query = "select sum(lance.leilao.valorInicial), " +
+			"count(lance.leilao.valorInicial) from Lance lance where lance.usuario = :usuario"),
+	@NamedQuery(name = LEILAO_TERMOS_DO_INDICE, query = "select l.id, l.nome, l.encerrado, l.usado from Leilao l")
+})
 public class Leilao {
 
 	@Id @GeneratedValue
 	private int id;
 	private String nome;
-	private Double valorInicial;
-	@ManyToOne
+	/** Em centavos; null quando o leilao nao tem valor inicial. */
+	@Column(name = "VALORINICIAL_CENTAVOS")
+	private Long valorInicial;
+	@ManyToOne(fetch = FetchType.LAZY)
 	private Usuario dono;
 	private Calendar dataAbertura;
 	private boolean usado;
@@ -31,10 +58,14 @@ public class Leilao {
 		this.dataAbertura = Calendar.getInstance();
 	}
 	
-	public Leilao(String nome, Double valorInicial, Usuario dono, boolean usado) {
+	public Leilao(String nome, double valorInicial, Usuario dono, boolean usado) {
+		this(nome, Dinheiro.emReais(valorInicial), dono, usado);
+	}
+	
+	public Leilao(String nome, Dinheiro valorInicial, Usuario dono, boolean usado) {
 		this();
 		this.nome = nome;
-		this.valorInicial = valorInicial;
+		setValorInicial(valorInicial);
 		this.dono = dono;
 		this.usado = usado;
 	}
@@ -55,11 +86,15 @@ public class Leilao {
 		return nome;
 	}
 	
-	public void setValorInicial(Double valorInicial) {
-		this.valorInicial = valorInicial;
+	public void setValorInicial(Dinheiro valorInicial) {
+		this.valorInicial = valorInicial == null ? null : valorInicial.getCentavos();
+	}
+	
+	public Dinheiro getValorInicial() {
+		return valorInicial == null ? null : Dinheiro.emCentavos(valorInicial);
 	}
 	
-	public Double getValorInicial() {
+	public Long getValorInicialEmCentavos() {
 		return valorInicial;
 	}
 	
@@ -7,7 +7,7 @@ import java.util.List;
 public class LeilaoBuilder {
 
     private Usuario dono;
-    private double valor;
+    private Dinheiro valor;
     private String nome;
     private boolean usado;
     private Calendar dataAbertura;
@@ -16,7 +16,7 @@ public class LeilaoBuilder {
 
     public LeilaoBuilder() {
         this.dono = new Usuario("Joao da Silva", "joao@silva.com.br");
-        this.valor = 1500.0;
+        this.valor = Dinheiro.emReais(1500.0);
         this.nome = "XBox";
         this.usado = false;
         this.dataAbertura = Calendar.getInstance();
@@ -29,10 +29,18 @@ public class LeilaoBuilder {
     }
 
     public LeilaoBuilder comValor(double valor) {
+        return comValor(Dinheiro.emReais(valor));
+    }
+
+    public LeilaoBuilder comValor(Dinheiro valor) {
         this.valor = valor;
         return this;
     }
 
+    public LeilaoBuilder semValor() {
+        return comValor((Dinheiro) null);
+    }
+
     public LeilaoBuilder comNome(String nome) {
         this.nome = nome;
         return this;
@@ -1,15 +1,32 @@
 package br.com.caelum.pm73.dominio;
 
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.USUARIO_POR_IDS;
+import static br.com.caelum.pm73.dao.CatalogoDeConsultas.USUARIO_POR_NOME_E_EMAIL;
+
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+
+import org.hibernate.annotations.BatchSize;
+import org.hibernate.annotations.NaturalId;
+import org.hibernate.annotations.NaturalIdCache;
 
 @Entity
+@BatchSize(size = 25)
+@NaturalIdCache
+@NamedQueries({
+	@NamedQuery(name = USUARIO_POR_IDS, query = "from Usuario u where u.id in (:ids)"),
+	@NamedQuery(name = USUARIO_POR_NOME_E_EMAIL, query = "from Usuario u where u.nome = :nome and u.email = :email")
+})
 public class Usuario {
 	
 	@Id @GeneratedValue
 	private int id;
+	@NaturalId(mutable = true)
 	private String nome;
+	@NaturalId(mutable = true)
 	private String email;
 
 	protected Usuario() {}
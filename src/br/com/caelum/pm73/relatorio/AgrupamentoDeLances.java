@@ -0,0 +1,173 @@
+package br.com.caelum.pm73.relatorio;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import br.com.caelum.pm73.dominio.Dinheiro;
+
+/**
+ * Resultado de {@link InstantaneoDeLances#agrupa}. As linhas sao ordenadas
+ * pela chave com {@link Arrays#parallelSort}, o que deixa cada grupo contiguo;
+ * depois cada grupo e' ordenado e somado por tarefas fork-join independentes,
+ * sem estado compartilhado para juntar no final.
+ *
+ * Chaves ausentes tem quantidade zero e valores zerados. Linhas
+ * {@link InstantaneoDeLances#SEM_VALOR} ficam de fora, como o NULL no avg do SQL.
+ */
+public class AgrupamentoDeLances {
+
+	private static final int LINHAS_POR_TAREFA = 1 << 14;
+
+	private final int[] chaves;
+	private final int[] inicio;
+	private final long[] soma;
+	private final long[] ordenados;
+
+	AgrupamentoDeLances(ForkJoinPool pool, int[] colunaDaChave, long[] colunaDoValor, long[] colunaDaData,
+			int quantidade, long desde, long ate) {
+		long[] filtradas = new long[quantidade];
+		int linhas = 0;
+		for (int i = 0; i < quantidade; i++) {
+			if (colunaDaData[i] < desde || colunaDaData[i] >= ate) continue;
+			if (colunaDoValor[i] == InstantaneoDeLances.SEM_VALOR) continue;
+			filtradas[linhas++] = (long) colunaDaChave[i] << 32 | i;
+		}
+		long[] ordem = linhas == quantidade ? filtradas : Arrays.copyOf(filtradas, linhas);
+		pool.submit(() -> Arrays.parallelSort(ordem)).join();
+
+		int grupos = 0;
+		for (int i = 0; i < linhas; i++) {
+			if (i == 0 || chave(ordem[i]) != chave(ordem[i - 1])) grupos++;
+		}
+		this.chaves = new int[grupos];
+		this.inicio = new int[grupos + 1];
+		for (int i = 0, grupo = 0; i < linhas; i++) {
+			if (i == 0 || chave(ordem[i]) != chave(ordem[i - 1])) {
+				chaves[grupo] = chave(ordem[i]);
+				inicio[grupo++] = i;
+			}
+		}
+		inicio[grupos] = linhas;
+
+		this.soma = new long[grupos];
+		this.ordenados = new long[linhas];
+		pool.invoke(new PorGrupos(ordem, colunaDoValor, 0, grupos));
+	}
+
+	private static int chave(long ordem) {
+		return (int) (ordem >> 32);
+	}
+
+	public int getQuantidadeDeGrupos() {
+		return chaves.length;
+	}
+
+	/** Chaves presentes, em ordem crescente. */
+	public int[] getChaves() {
+		return chaves.clone();
+	}
+
+	public long quantidade(int chave) {
+		int grupo = grupo(chave);
+		return grupo < 0 ? 0 : inicio[grupo + 1] - inicio[grupo];
+	}
+
+	public Dinheiro soma(int chave) {
+		int grupo = grupo(chave);
+		return Dinheiro.emCentavos(grupo < 0 ? 0 : soma[grupo]);
+	}
+
+	/** Media em reais; nao e' arredondada para centavos. */
+	public double media(int chave) {
+		int grupo = grupo(chave);
+		return grupo < 0 ? 0 : soma[grupo] / 100.0 / (inicio[grupo + 1] - inicio[grupo]);
+	}
+
+	public Dinheiro minimo(int chave) {
+		int grupo = grupo(chave);
+		return Dinheiro.emCentavos(grupo < 0 ? 0 : ordenados[inicio[grupo]]);
+	}
+
+	public Dinheiro maximo(int chave) {
+		int grupo = grupo(chave);
+		return Dinheiro.emCentavos(grupo < 0 ? 0 : ordenados[inicio[grupo + 1] - 1]);
+	}
+
+	/** Valor abaixo do qual ficam {@code percentil}% dos lances do grupo. */
+	public Dinheiro percentil(int chave, double percentil) {
+		int grupo = grupo(chave);
+		if (grupo < 0) return Dinheiro.ZERO;
+
+		int quantidade = inicio[grupo + 1] - inicio[grupo];
+		return Dinheiro.emCentavos(ordenados[inicio[grupo] + InstantaneoDeLances.posicaoDoPercentil(quantidade, percentil)]);
+	}
+
+	/**
+	 * As {@code n} chaves com mais lances, da maior para a menor quantidade;
+	 * empates saem pela menor chave. Agrupado por leilao, sao os mais
+	 * disputados.
+	 */
+	public int[] maisFrequentes(int n) {
+		long[] porQuantidade = new long[chaves.length];
+		for (int grupo = 0; grupo < chaves.length; grupo++) {
+			long quantidade = inicio[grupo + 1] - inicio[grupo];
+			porQuantidade[grupo] = (Integer.MAX_VALUE - quantidade) << 32 | grupo;
+		}
+		Arrays.parallelSort(porQuantidade);
+
+		int[] maiores = new int[Math.min(n, chaves.length)];
+		for (int i = 0; i < maiores.length; i++) {
+			maiores[i] = chaves[(int) porQuantidade[i]];
+		}
+		return maiores;
+	}
+
+	private int grupo(int chave) {
+		return Arrays.binarySearch(chaves, chave);
+	}
+
+	/**
+	 * Processa os grupos [de, ate). Divide pelo meio em numero de linhas, nao
+	 * de grupos, para que um leilao muito disputado nao deixe uma tarefa com
+	 * quase todo o trabalho.
+	 */
+	private class PorGrupos extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long[] ordem;
+		private final long[] valores;
+		private final int de;
+		private final int ate;
+
+		PorGrupos(long[] ordem, long[] valores, int de, int ate) {
+			this.ordem = ordem;
+			this.valores = valores;
+			this.de = de;
+			this.ate = ate;
+		}
+
+		@Override
+		protected void compute() {
+			if (ate - de > 1 && inicio[ate] - inicio[de] > LINHAS_POR_TAREFA) {
+				int meio = Arrays.binarySearch(inicio, de, ate, (inicio[de] + inicio[ate]) >>> 1);
+				if (meio < 0) meio = -meio - 1;
+				meio = Math.max(de + 1, Math.min(meio, ate - 1));
+				invokeAll(new PorGrupos(ordem, valores, de, meio), new PorGrupos(ordem, valores, meio, ate));
+				return;
+			}
+
+			for (int grupo = de; grupo < ate; grupo++) {
+				long total = 0;
+				for (int i = inicio[grupo]; i < inicio[grupo + 1]; i++) {
+					long valor = valores[(int) ordem[i]];
+					ordenados[i] = valor;
+					total += valor;
+				}
+				Arrays.sort(ordenados, inicio[grupo], inicio[grupo + 1]);
+				soma[grupo] = total;
+			}
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package br.com.caelum.pm73.relatorio;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import org.hibernate.Session;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.jdbc.ReturningWork;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+
+/**
+ * Mantem o {@link InstantaneoDeLances} atual. {@link #recarrega(Session)} le
+ * LEILAO e LANCE com cursores JDBC somente para frente direto para as
+ * colunas; depois disso cada leilao ou lance inserido entra no instantaneo
+ * sem voltar ao banco.
+ *
+ * {@link #acompanha(CriadorDeSessao)} faz so linhas de transacoes comitadas
+ * entrarem; {@link #close()} desfaz a inscricao. Alteracoes e remocoes so
+ * aparecem na proxima recarga.
+ */
+public class AnaliseDeLances implements PostInsertEventListener, AutoCloseable {
+
+	private static final long serialVersionUID = 1L;
+	private static final int LINHAS_POR_BUSCA = 1000;
+
+	private static final String SQL_LEILOES = "select ID, DONO_ID, VALORINICIAL_CENTAVOS from LEILAO order by ID";
+	private static final String SQL_LANCES = "select la.ID, la.LEILAO_ID, la.USUARIO_ID, la.DATA, la.VALOR_CENTAVOS, " +
+			"le.DONO_ID, le.VALORINICIAL_CENTAVOS from LANCE la left join LEILAO le on le.ID = la.LEILAO_ID order by la.ID";
+
+	private final ForkJoinPool pool;
+	private final Object recarga = new Object();
+	private volatile InstantaneoDeLances atual;
+	private List<UnaryOperator<InstantaneoDeLances>> duranteARecarga;
+	private CriadorDeSessao acompanhado;
+
+	public AnaliseDeLances() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	public AnaliseDeLances(ForkJoinPool pool) {
+		this.pool = pool;
+		this.atual = new InstantaneoDeLances(pool);
+	}
+
+	public InstantaneoDeLances atual() {
+		return atual;
+	}
+
+	public synchronized void acompanha(CriadorDeSessao criador) {
+		close();
+		criador.registraAposCommitDeInsercao(this);
+		acompanhado = criador;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (acompanhado == null) return;
+		acompanhado.removeAposCommitDeInsercao(this);
+		acompanhado = null;
+	}
+
+	/**
+	 * Troca o instantaneo por uma leitura completa do banco. O que for
+	 * registrado enquanto ela roda e' reaplicado por cima, descartando pelo
+	 * id o que a leitura ja trouxe: ids sao gerados no insert, nao no commit,
+	 * entao um lance comitado durante a leitura pode ter id menor que os lidos.
+	 */
+	public void recarrega(Session session) {
+		recarrega(() -> session.doReturningWork(new ReturningWork<InstantaneoDeLances>() {
+			@Override
+			public InstantaneoDeLances execute(Connection conexao) throws SQLException {
+				return carrega(conexao);
+			}
+		}));
+	}
+
+	void recarrega(Supplier<InstantaneoDeLances> leitura) {
+		synchronized (recarga) {
+			synchronized (this) {
+				duranteARecarga = new ArrayList<UnaryOperator<InstantaneoDeLances>>();
+			}
+			InstantaneoDeLances novo = null;
+			try {
+				novo = leitura.get();
+			} finally {
+				synchronized (this) {
+					if (novo != null) {
+						for (UnaryOperator<InstantaneoDeLances> registro : duranteARecarga) {
+							novo = registro.apply(novo);
+						}
+						atual = novo;
+					}
+					duranteARecarga = null;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void onPostInsert(PostInsertEvent evento) {
+		if (evento.getEntity() instanceof Leilao) {
+			registra((Leilao) evento.getEntity());
+		} else if (evento.getEntity() instanceof Lance) {
+			registra((Lance) evento.getEntity());
+		}
+	}
+
+	public void registra(Leilao leilao) {
+		int donoId = leilao.getDono() == null ? 0 : leilao.getDono().getId();
+		registraLeilao(leilao.getId(), donoId, leilao.getValorInicialEmCentavos());
+	}
+
+	public void registra(Lance lance) {
+		long data = lance.getData() == null ? Long.MIN_VALUE : lance.getData().getTimeInMillis();
+		int leilaoId = lance.getLeilao() == null ? 0 : lance.getLeilao().getId();
+		int usuarioId = lance.getUsuario() == null ? 0 : lance.getUsuario().getId();
+
+		registraLance(lance.getId(), leilaoId, usuarioId, data, lance.getValorEmCentavos());
+	}
+
+	/** {@code valorInicial} em centavos, ou null se o leilao nao tiver um. */
+	public void registraLeilao(int id, int donoId, Long valorInicial) {
+		long centavos = valorInicial == null ? InstantaneoDeLances.SEM_VALOR : valorInicial;
+		aplica(instantaneo -> instantaneo.comLeilao(id, donoId, centavos));
+	}
+
+	/** O leilao precisa ter sido registrado antes para que o lance leve seu dono e valor inicial. */
+	public void registraLance(int id, int leilaoId, int usuarioId, long data, long centavos) {
+		aplica(instantaneo -> instantaneo.comLance(id, leilaoId, usuarioId, data, centavos));
+	}
+
+	private synchronized void aplica(UnaryOperator<InstantaneoDeLances> registro) {
+		atual = registro.apply(atual);
+		if (duranteARecarga != null) duranteARecarga.add(registro);
+	}
+
+	private InstantaneoDeLances carrega(Connection conexao) throws SQLException {
+		int leiloes = 0;
+		int[] idDoLeilao = new int[InstantaneoDeLances.CAPACIDADE_INICIAL];
+		int[] donoDoLeilao = new int[InstantaneoDeLances.CAPACIDADE_INICIAL];
+		long[] valorInicialDoLeilao = new long[InstantaneoDeLances.CAPACIDADE_INICIAL];
+
+		try (PreparedStatement ps = consulta(conexao, SQL_LEILOES); ResultSet rs = ps.executeQuery()) {
+			while (rs.next()) {
+				if (leiloes == idDoLeilao.length) {
+					idDoLeilao = Arrays.copyOf(idDoLeilao, leiloes * 2);
+					donoDoLeilao = Arrays.copyOf(donoDoLeilao, leiloes * 2);
+					valorInicialDoLeilao = Arrays.copyOf(valorInicialDoLeilao, leiloes * 2);
+				}
+				idDoLeilao[leiloes] = rs.getInt(1);
+				donoDoLeilao[leiloes] = rs.getInt(2);
+				valorInicialDoLeilao[leiloes] = centavosOuSemValor(rs, 3);
+				leiloes++;
+			}
+		}
+
+		int lances = 0;
+		int[] idDoLance = new int[InstantaneoDeLances.CAPACIDADE_INICIAL];
+		int[] leilao = new int[InstantaneoDeLances.CAPACIDADE_INICIAL];
+		int[] usuario = new int[InstantaneoDeLances.CAPACIDADE_INICIAL];
+		int[] dono = new int[InstantaneoDeLances.CAPACIDADE_INICIAL];
+		long[] data = new long[InstantaneoDeLances.CAPACIDADE_INICIAL];
+		long[] valor = new long[InstantaneoDeLances.CAPACIDADE_INICIAL];
+		long[] valorInicial = new long[InstantaneoDeLances.CAPACIDADE_INICIAL];
+
+		try (PreparedStatement ps = consulta(conexao, SQL_LANCES); ResultSet rs = ps.executeQuery()) {
+			while (rs.next()) {
+				if (lances == idDoLance.length) {
+					idDoLance = Arrays.copyOf(idDoLance, lances * 2);
+					leilao = Arrays.copyOf(leilao, lances * 2);
+					usuario = Arrays.copyOf(usuario, lances * 2);
+					dono = Arrays.copyOf(dono, lances * 2);
+					data = Arrays.copyOf(data, lances * 2);
+					valor = Arrays.copyOf(valor, lances * 2);
+					valorInicial = Arrays.copyOf(valorInicial, lances * 2);
+				}
+				idDoLance[lances] = rs.getInt(1);
+				leilao[lances] = rs.getInt(2);
+				usuario[lances] = rs.getInt(3);
+				data[lances] = millis(rs.getTimestamp(4));
+				valor[lances] = rs.getLong(5);
+				dono[lances] = rs.getInt(6);
+				valorInicial[lances] = centavosOuSemValor(rs, 7);
+				lances++;
+			}
+		}
+
+		return new InstantaneoDeLances(pool, leiloes, idDoLeilao, donoDoLeilao, valorInicialDoLeilao,
+				lances, lances, idDoLance, leilao, usuario, dono, data, valor, valorInicial);
+	}
+
+	private static PreparedStatement consulta(Connection conexao, String sql) throws SQLException {
+		PreparedStatement ps = conexao.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		ps.setFetchSize(LINHAS_POR_BUSCA);
+		return ps;
+	}
+
+	private static long centavosOuSemValor(ResultSet rs, int coluna) throws SQLException {
+		long centavos = rs.getLong(coluna);
+		return rs.wasNull() ? InstantaneoDeLances.SEM_VALOR : centavos;
+	}
+
+	private static long millis(Timestamp data) {
+		return data == null ? Long.MIN_VALUE : data.getTime();
+	}
+}
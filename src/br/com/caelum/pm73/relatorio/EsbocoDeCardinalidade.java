@@ -0,0 +1,56 @@
+package br.com.caelum.pm73.relatorio;
+
+/**
+ * HyperLogLog com 2^10 registradores: estima quantos ids distintos foram
+ * vistos usando 1KB fixo, com erro tipico de ~3%. Esbocos podem ser somados,
+ * o que permite juntar baldes sem rever os lances.
+ */
+public class EsbocoDeCardinalidade {
+
+	private static final int BITS_DE_INDICE = 10;
+	private static final int REGISTRADORES = 1 << BITS_DE_INDICE;
+	private static final double ALFA = 0.7213 / (1 + 1.079 / REGISTRADORES);
+
+	private final byte[] registradores = new byte[REGISTRADORES];
+
+	public void adiciona(int id) {
+		long hash = espalha(id);
+		int indice = (int) (hash >>> (64 - BITS_DE_INDICE));
+		byte posicao = (byte) (Long.numberOfLeadingZeros((hash << BITS_DE_INDICE) | (1L << (BITS_DE_INDICE - 1))) + 1);
+		if (posicao > registradores[indice]) {
+			registradores[indice] = posicao;
+		}
+	}
+
+	public void soma(EsbocoDeCardinalidade outro) {
+		for (int i = 0; i < REGISTRADORES; i++) {
+			if (outro.registradores[i] > registradores[i]) {
+				registradores[i] = outro.registradores[i];
+			}
+		}
+	}
+
+	public long estimativa() {
+		double soma = 0;
+		int vazios = 0;
+		for (byte registrador : registradores) {
+			soma += 1.0 / (1L << registrador);
+			if (registrador == 0) vazios++;
+		}
+
+		double estimativa = ALFA * REGISTRADORES * REGISTRADORES / soma;
+		if (estimativa <= 2.5 * REGISTRADORES && vazios > 0) {
+			estimativa = REGISTRADORES * Math.log((double) REGISTRADORES / vazios);
+		}
+		return Math.round(estimativa);
+	}
+
+	private static long espalha(long x) {
+		x ^= x >>> 33;
+		x *= 0xff51afd7ed558ccdL;
+		x ^= x >>> 33;
+		x *= 0xc4ceb9fe1a85ec53L;
+		x ^= x >>> 33;
+		return x;
+	}
+}
@@ -0,0 +1,204 @@
+package br.com.caelum.pm73.relatorio;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import br.com.caelum.pm73.dominio.Dinheiro;
+
+/**
+ * Copia colunar e imutavel de LANCE e LEILAO. Cada coluna e' um array
+ * primitivo; o lance ja traz o dono e o valor inicial do seu leilao, entao
+ * nenhuma consulta precisa de juncao.
+ *
+ * Instantaneos sucessivos compartilham os arrays: um lance novo e' escrito
+ * depois da ultima posicao visivel e publicado em um novo instantaneo com
+ * uma posicao a mais. Quem ja tem um instantaneo continua vendo exatamente
+ * as mesmas linhas.
+ */
+public final class InstantaneoDeLances {
+
+	public enum Chave { LEILAO, USUARIO, DONO }
+
+	public enum Medida { VALOR, VALOR_INICIAL }
+
+	static final int CAPACIDADE_INICIAL = 1024;
+
+	/** Valor inicial de leilao que nao tem um, ou que nao esta no instantaneo. */
+	static final long SEM_VALOR = Long.MIN_VALUE;
+
+	final ForkJoinPool pool;
+
+	final int leiloes;
+	final int[] idDoLeilao;
+	final int[] donoDoLeilao;
+	final long[] valorInicialDoLeilao;
+
+	final int lances;
+	final int lancesCarregados;
+	final int[] idDoLance;
+	final int[] leilao;
+	final int[] usuario;
+	final int[] dono;
+	final long[] data;
+	final long[] valor;
+	final long[] valorInicial;
+
+	InstantaneoDeLances(ForkJoinPool pool) {
+		this(pool, 0, new int[CAPACIDADE_INICIAL], new int[CAPACIDADE_INICIAL], new long[CAPACIDADE_INICIAL],
+				0, 0, new int[CAPACIDADE_INICIAL], new int[CAPACIDADE_INICIAL], new int[CAPACIDADE_INICIAL],
+				new int[CAPACIDADE_INICIAL], new long[CAPACIDADE_INICIAL], new long[CAPACIDADE_INICIAL],
+				new long[CAPACIDADE_INICIAL]);
+	}
+
+	InstantaneoDeLances(ForkJoinPool pool, int leiloes, int[] idDoLeilao, int[] donoDoLeilao,
+			long[] valorInicialDoLeilao, int lances, int lancesCarregados, int[] idDoLance, int[] leilao,
+			int[] usuario, int[] dono, long[] data, long[] valor, long[] valorInicial) {
+		this.pool = pool;
+		this.leiloes = leiloes;
+		this.idDoLeilao = idDoLeilao;
+		this.donoDoLeilao = donoDoLeilao;
+		this.valorInicialDoLeilao = valorInicialDoLeilao;
+		this.lances = lances;
+		this.lancesCarregados = lancesCarregados;
+		this.idDoLance = idDoLance;
+		this.leilao = leilao;
+		this.usuario = usuario;
+		this.dono = dono;
+		this.data = data;
+		this.valor = valor;
+		this.valorInicial = valorInicial;
+	}
+
+	public int getQuantidadeDeLances() {
+		return lances;
+	}
+
+	public int getQuantidadeDeLeiloes() {
+		return leiloes;
+	}
+
+	/**
+	 * Agrupa os lances pela chave e calcula quantidade, soma, media, minimo,
+	 * maximo e percentis da medida em cada grupo, dividindo o trabalho entre
+	 * os nucleos do pool.
+	 */
+	public AgrupamentoDeLances agrupa(Chave chave, Medida medida) {
+		return agrupa(chave, medida, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/** Como {@link #agrupa(Chave, Medida)}, apenas com os lances dados em [desde, ate). */
+	public AgrupamentoDeLances agrupa(Chave chave, Medida medida, long desde, long ate) {
+		return new AgrupamentoDeLances(pool, coluna(chave), coluna(medida), data, lances, desde, ate);
+	}
+
+	/**
+	 * Valor abaixo do qual ficam {@code percentil}% dos lances, sem agrupar.
+	 * Lances sem valor inicial nao contam para {@link Medida#VALOR_INICIAL}.
+	 */
+	public Dinheiro percentil(Medida medida, double percentil) {
+		long[] ordenados = Arrays.copyOf(coluna(medida), lances);
+		pool.submit(() -> Arrays.parallelSort(ordenados)).join();
+
+		// SEM_VALOR e' o menor long: depois de ordenar, fica todo no comeco
+		int semValor = 0;
+		while (semValor < lances && ordenados[semValor] == SEM_VALOR) semValor++;
+		if (semValor == lances) return Dinheiro.ZERO;
+
+		return Dinheiro.emCentavos(ordenados[semValor + posicaoDoPercentil(lances - semValor, percentil)]);
+	}
+
+	static int posicaoDoPercentil(int quantidade, double percentil) {
+		long alvo = Math.max(1, (long) Math.ceil(quantidade * percentil / 100));
+		return (int) Math.min(alvo, quantidade) - 1;
+	}
+
+	private int[] coluna(Chave chave) {
+		switch (chave) {
+		case LEILAO: return leilao;
+		case USUARIO: return usuario;
+		default: return dono;
+		}
+	}
+
+	private long[] coluna(Medida medida) {
+		return medida == Medida.VALOR ? valor : valorInicial;
+	}
+
+	/** Posicao do leilao nas colunas de leilao, ou negativa se nao estiver no instantaneo. */
+	int posicaoDoLeilao(int id) {
+		return Arrays.binarySearch(idDoLeilao, 0, leiloes, id);
+	}
+
+	boolean temLanceCarregado(int id) {
+		return Arrays.binarySearch(idDoLance, 0, lancesCarregados, id) >= 0;
+	}
+
+	/**
+	 * Novo instantaneo com um leilao a mais. Ids chegam em ordem crescente;
+	 * quando nao chegam, as colunas sao copiadas para manter a ordem. So pode
+	 * ser chamado sobre o instantaneo mais recente, por um unico escritor.
+	 */
+	InstantaneoDeLances comLeilao(int id, int donoId, long centavos) {
+		int posicao = posicaoDoLeilao(id);
+		if (posicao >= 0) return this;
+		posicao = -posicao - 1;
+
+		int[] ids = idDoLeilao;
+		int[] donos = donoDoLeilao;
+		long[] valores = valorInicialDoLeilao;
+		if (posicao < leiloes || leiloes == ids.length) {
+			int capacidade = leiloes == ids.length ? ids.length * 2 : ids.length;
+			ids = abre(idDoLeilao, leiloes, posicao, capacidade);
+			donos = abre(donoDoLeilao, leiloes, posicao, capacidade);
+			valores = abre(valorInicialDoLeilao, leiloes, posicao, capacidade);
+		}
+		ids[posicao] = id;
+		donos[posicao] = donoId;
+		valores[posicao] = centavos;
+
+		return new InstantaneoDeLances(pool, leiloes + 1, ids, donos, valores, lances, lancesCarregados,
+				idDoLance, leilao, usuario, dono, data, valor, valorInicial);
+	}
+
+	/** Novo instantaneo com um lance a mais; mesmas restricoes de {@link #comLeilao}. */
+	InstantaneoDeLances comLance(int id, int leilaoId, int usuarioId, long instante, long centavos) {
+		if (temLanceCarregado(id)) return this;
+
+		InstantaneoDeLances destino = this;
+		if (lances == idDoLance.length) {
+			int capacidade = idDoLance.length * 2;
+			destino = new InstantaneoDeLances(pool, leiloes, idDoLeilao, donoDoLeilao, valorInicialDoLeilao,
+					lances, lancesCarregados, Arrays.copyOf(idDoLance, capacidade),
+					Arrays.copyOf(leilao, capacidade), Arrays.copyOf(usuario, capacidade),
+					Arrays.copyOf(dono, capacidade), Arrays.copyOf(data, capacidade),
+					Arrays.copyOf(valor, capacidade), Arrays.copyOf(valorInicial, capacidade));
+		}
+
+		int posicaoDoLeilao = posicaoDoLeilao(leilaoId);
+		destino.idDoLance[lances] = id;
+		destino.leilao[lances] = leilaoId;
+		destino.usuario[lances] = usuarioId;
+		destino.dono[lances] = posicaoDoLeilao < 0 ? 0 : donoDoLeilao[posicaoDoLeilao];
+		destino.data[lances] = instante;
+		destino.valor[lances] = centavos;
+		destino.valorInicial[lances] = posicaoDoLeilao < 0 ? SEM_VALOR : valorInicialDoLeilao[posicaoDoLeilao];
+
+		return new InstantaneoDeLances(pool, leiloes, idDoLeilao, donoDoLeilao, valorInicialDoLeilao,
+				lances + 1, lancesCarregados, destino.idDoLance, destino.leilao, destino.usuario,
+				destino.dono, destino.data, destino.valor, destino.valorInicial);
+	}
+
+	private static int[] abre(int[] origem, int tamanho, int posicao, int capacidade) {
+		int[] destino = new int[capacidade];
+		System.arraycopy(origem, 0, destino, 0, posicao);
+		System.arraycopy(origem, posicao, destino, posicao + 1, tamanho - posicao);
+		return destino;
+	}
+
+	private static long[] abre(long[] origem, int tamanho, int posicao, int capacidade) {
+		long[] destino = new long[capacidade];
+		System.arraycopy(origem, 0, destino, 0, posicao);
+		System.arraycopy(origem, posicao, destino, posicao + 1, tamanho - posicao);
+		return destino;
+	}
+}
@@ -0,0 +1,54 @@
+package br.com.caelum.pm73.relatorio;
+
+import br.com.caelum.pm73.dominio.Dinheiro;
+
+public class ResumoDeLances {
+
+	private final long inicio;
+	private final long quantidade;
+	private final long soma;
+	private final long minimo;
+	private final long maximo;
+	private final long usuariosDistintos;
+
+	public ResumoDeLances(long inicio, long quantidade, long soma, long minimo, long maximo,
+			long usuariosDistintos) {
+		this.inicio = inicio;
+		this.quantidade = quantidade;
+		this.soma = soma;
+		this.minimo = minimo;
+		this.maximo = maximo;
+		this.usuariosDistintos = usuariosDistintos;
+	}
+
+	/** Inicio do balde, em milissegundos desde a epoca. */
+	public long getInicio() {
+		return inicio;
+	}
+
+	public long getQuantidade() {
+		return quantidade;
+	}
+
+	public Dinheiro getSoma() {
+		return Dinheiro.emCentavos(soma);
+	}
+
+	public Dinheiro getMinimo() {
+		return Dinheiro.emCentavos(minimo);
+	}
+
+	public Dinheiro getMaximo() {
+		return Dinheiro.emCentavos(maximo);
+	}
+
+	/** Media em reais; nao e' arredondada para centavos. */
+	public double getMedia() {
+		return quantidade == 0 ? 0 : soma / 100.0 / quantidade;
+	}
+
+	/** Estimativa aproximada; veja {@link EsbocoDeCardinalidade}. */
+	public long getUsuariosDistintos() {
+		return usuariosDistintos;
+	}
+}
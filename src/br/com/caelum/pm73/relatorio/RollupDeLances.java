@@ -0,0 +1,265 @@
+package br.com.caelum.pm73.relatorio;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dominio.Lance;
+
+/**
+ * Mantem agregados de lances por hora, dia e mes e por leilao, atualizados a
+ * cada lance inserido. Consultas por intervalo percorrem apenas os baldes do
+ * intervalo, nunca os lances.
+ *
+ * Horas e dias antigos podem ser descartados com {@link #compacta(long)} e
+ * {@link #compactaDias(long)}; os meses nunca sao. Por padrao os baldes de
+ * leilao nao estimam usuarios distintos, porque cada esboco ocupa 1KB.
+ *
+ * {@link #acompanha(CriadorDeSessao)} passa a receber os lances de cada
+ * transacao comitada, e so deles; quem chamou deve chamar {@link #close()}
+ * quando o rollup deixar de ser usado.
+ */
+public class RollupDeLances implements PostInsertEventListener, AutoCloseable {
+
+	private static final long serialVersionUID = 1L;
+	private static final long HORA = 60 * 60 * 1000L;
+
+	private final ZoneId zona;
+	private final boolean usuariosPorLeilao;
+	private final ConcurrentSkipListMap<Long, Balde> horas = new ConcurrentSkipListMap<Long, Balde>();
+	private final ConcurrentSkipListMap<Long, Balde> dias = new ConcurrentSkipListMap<Long, Balde>();
+	private final ConcurrentSkipListMap<Long, Balde> meses = new ConcurrentSkipListMap<Long, Balde>();
+	private final ConcurrentMap<Integer, Balde> leiloes = new ConcurrentHashMap<Integer, Balde>();
+
+	private volatile long horasDesde = Long.MIN_VALUE;
+	private volatile long diasDesde = Long.MIN_VALUE;
+	private CriadorDeSessao acompanhado;
+
+	public RollupDeLances() {
+		this(ZoneId.systemDefault());
+	}
+
+	public RollupDeLances(ZoneId zona) {
+		this(zona, false);
+	}
+
+	public RollupDeLances(ZoneId zona, boolean usuariosPorLeilao) {
+		this.zona = zona;
+		this.usuariosPorLeilao = usuariosPorLeilao;
+	}
+
+	public synchronized void acompanha(CriadorDeSessao criador) {
+		close();
+		criador.registraAposCommitDeInsercao(this);
+		acompanhado = criador;
+	}
+
+	/** Para de receber lances; os totais ja acumulados continuam consultaveis. */
+	@Override
+	public synchronized void close() {
+		if (acompanhado == null) return;
+		acompanhado.removeAposCommitDeInsercao(this);
+		acompanhado = null;
+	}
+
+	@Override
+	public void onPostInsert(PostInsertEvent evento) {
+		if (evento.getEntity() instanceof Lance) {
+			registra((Lance) evento.getEntity());
+		}
+	}
+
+	public void registra(Lance lance) {
+		long data = lance.getData() == null ? Long.MIN_VALUE : lance.getData().getTimeInMillis();
+		int leilaoId = lance.getLeilao() == null ? 0 : lance.getLeilao().getId();
+		int usuarioId = lance.getUsuario() == null ? 0 : lance.getUsuario().getId();
+
+		registra(data, leilaoId, usuarioId, lance.getValorEmCentavos());
+	}
+
+	public void registra(long data, int leilaoId, int usuarioId, long centavos) {
+		if (data != Long.MIN_VALUE) {
+			long hora = Math.floorDiv(data, HORA) * HORA;
+			long dia = inicioDoDia(data);
+			if (hora >= horasDesde) horas.computeIfAbsent(hora, Balde::new).adiciona(usuarioId, centavos);
+			if (dia >= diasDesde) dias.computeIfAbsent(dia, Balde::new).adiciona(usuarioId, centavos);
+			meses.computeIfAbsent(inicioDoMes(data), Balde::new).adiciona(usuarioId, centavos);
+		}
+		if (leilaoId != 0) {
+			leiloes.computeIfAbsent(leilaoId, id -> new Balde(0, usuariosPorLeilao)).adiciona(usuarioId, centavos);
+		}
+	}
+
+	/** Baldes de hora que comecam em [inicio, fim). */
+	public List<ResumoDeLances> porHora(long inicio, long fim) {
+		return resumos(horas.subMap(inicio, fim));
+	}
+
+	/** Baldes de dia que comecam em [inicio, fim). */
+	public List<ResumoDeLances> porDia(long inicio, long fim) {
+		return resumos(dias.subMap(inicio, fim));
+	}
+
+	/** Baldes de mes que comecam em [inicio, fim). */
+	public List<ResumoDeLances> porMes(long inicio, long fim) {
+		return resumos(meses.subMap(inicio, fim));
+	}
+
+	/**
+	 * Agrega [inicio, fim) usando baldes de mes para os meses inteiros, de dia
+	 * para os dias inteiros nas pontas e de hora para o resto. Se o intervalo
+	 * precisar de horas ou dias ja compactados, falha em vez de devolver um
+	 * total menor.
+	 */
+	public ResumoDeLances resumoEntre(long inicio, long fim) {
+		Balde total = new Balde(inicio);
+
+		long instante = inicio;
+		while (instante < fim) {
+			long proximoMes = proximoMes(instante);
+			if (instante == inicioDoMes(instante) && proximoMes <= fim) {
+				soma(total, meses.subMap(instante, proximoMes));
+				instante = proximoMes;
+				continue;
+			}
+			long proximoDia = proximoDia(instante);
+			if (instante == inicioDoDia(instante) && proximoDia <= fim) {
+				exigeBaldes(instante, diasDesde, "dia");
+				soma(total, dias.subMap(instante, proximoDia));
+				instante = proximoDia;
+				continue;
+			}
+			long ate = Math.min(proximoDia, fim);
+			exigeBaldes(instante, horasDesde, "hora");
+			soma(total, horas.subMap(instante, ate));
+			instante = ate;
+		}
+		return total.resumo();
+	}
+
+	public ResumoDeLances doLeilao(int leilaoId) {
+		Balde balde = leiloes.get(leilaoId);
+		return balde == null ? new Balde(0).resumo() : balde.resumo();
+	}
+
+	/** Esquece os totais de um leilao, por exemplo depois que ele e' removido. */
+	public void descartaLeilao(int leilaoId) {
+		leiloes.remove(leilaoId);
+	}
+
+	/**
+	 * Descarta os baldes de hora anteriores a {@code limite}. Os totais
+	 * continuam disponiveis nos baldes de dia; antes do limite, consulte com
+	 * {@link #porDia(long, long)}.
+	 */
+	public void compacta(long limite) {
+		long desde = Math.floorDiv(limite, HORA) * HORA == limite ? limite : (Math.floorDiv(limite, HORA) + 1) * HORA;
+		horasDesde = Math.max(horasDesde, desde);
+		horas.headMap(horasDesde).clear();
+	}
+
+	/**
+	 * Descarta os baldes de dia, e de hora, anteriores a {@code limite}. Antes
+	 * do limite restam os baldes de mes.
+	 */
+	public void compactaDias(long limite) {
+		long desde = inicioDoDia(limite) == limite ? limite : proximoDia(limite);
+		compacta(desde);
+		diasDesde = Math.max(diasDesde, desde);
+		dias.headMap(diasDesde).clear();
+	}
+
+	private static void exigeBaldes(long instante, long desde, String granularidade) {
+		if (instante < desde) {
+			throw new IllegalArgumentException("Baldes de " + granularidade + " anteriores a "
+					+ Instant.ofEpochMilli(desde) + " ja foram compactados");
+		}
+	}
+
+	private long inicioDoDia(long data) {
+		return Instant.ofEpochMilli(data).atZone(zona).toLocalDate().atStartOfDay(zona).toInstant().toEpochMilli();
+	}
+
+	private long proximoDia(long data) {
+		LocalDate dia = Instant.ofEpochMilli(data).atZone(zona).toLocalDate();
+		return dia.plusDays(1).atStartOfDay(zona).toInstant().toEpochMilli();
+	}
+
+	private long inicioDoMes(long data) {
+		LocalDate dia = Instant.ofEpochMilli(data).atZone(zona).toLocalDate();
+		return dia.withDayOfMonth(1).atStartOfDay(zona).toInstant().toEpochMilli();
+	}
+
+	private long proximoMes(long data) {
+		LocalDate dia = Instant.ofEpochMilli(data).atZone(zona).toLocalDate();
+		return dia.withDayOfMonth(1).plusMonths(1).atStartOfDay(zona).toInstant().toEpochMilli();
+	}
+
+	private static List<ResumoDeLances> resumos(ConcurrentNavigableMap<Long, Balde> baldes) {
+		List<ResumoDeLances> resumos = new ArrayList<ResumoDeLances>(baldes.size());
+		for (Balde balde : baldes.values()) {
+			resumos.add(balde.resumo());
+		}
+		return resumos;
+	}
+
+	private static void soma(Balde total, ConcurrentNavigableMap<Long, Balde> baldes) {
+		for (Balde balde : baldes.values()) {
+			total.soma(balde);
+		}
+	}
+
+	private static class Balde {
+
+		private final long inicio;
+		private long quantidade;
+		private long soma;
+		private long minimo = Long.MAX_VALUE;
+		private long maximo = Long.MIN_VALUE;
+		private final EsbocoDeCardinalidade usuarios;
+
+		Balde(long inicio) {
+			this(inicio, true);
+		}
+
+		Balde(long inicio, boolean contaUsuarios) {
+			this.inicio = inicio;
+			this.usuarios = contaUsuarios ? new EsbocoDeCardinalidade() : null;
+		}
+
+		synchronized void adiciona(int usuarioId, long centavos) {
+			quantidade++;
+			soma += centavos;
+			minimo = Math.min(minimo, centavos);
+			maximo = Math.max(maximo, centavos);
+			if (usuarios != null && usuarioId != 0) usuarios.adiciona(usuarioId);
+		}
+
+		void soma(Balde outro) {
+			synchronized (outro) {
+				quantidade += outro.quantidade;
+				soma += outro.soma;
+				minimo = Math.min(minimo, outro.minimo);
+				maximo = Math.max(maximo, outro.maximo);
+				if (usuarios != null && outro.usuarios != null) usuarios.soma(outro.usuarios);
+			}
+		}
+
+		/** Sem esboco, a quantidade de usuarios distintos sai zerada. */
+		synchronized ResumoDeLances resumo() {
+			if (quantidade == 0) return new ResumoDeLances(inicio, 0, 0, 0, 0, 0);
+			return new ResumoDeLances(inicio, quantidade, soma, minimo, maximo,
+					usuarios == null ? 0 : usuarios.estimativa());
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package br.com.caelum.pm73.carga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramaDeLatenciaTest {
+
+	@Test
+	public void valoresPequenosDevemTerFaixasExatas() {
+		HistogramaDeLatencia histograma = new HistogramaDeLatencia();
+		for (long micros = 1; micros <= 200; micros++) {
+			histograma.registra(micros);
+		}
+
+		assertEquals(200, histograma.total());
+		assertEquals(100, histograma.percentil(50));
+		assertEquals(198, histograma.percentil(99));
+		assertEquals(1, histograma.percentil(0));
+		assertEquals(200, histograma.maximo());
+	}
+
+	@Test
+	public void cadaFaixaDeveConterOValorComErroAbaixoDeUmPorCento() {
+		int anterior = -1;
+		for (long valor = 0; valor < 1L << 40; valor = valor * 11 / 10 + 1) {
+			int indice = HistogramaDeLatencia.indice(valor);
+			long limite = HistogramaDeLatencia.limiteSuperior(indice);
+
+			assertTrue("faixas fora de ordem em " + valor, indice >= anterior);
+			assertTrue("limite " + limite + " abaixo de " + valor, limite >= valor);
+			assertTrue("limite " + limite + " longe de " + valor, limite - valor <= valor / 100);
+			if (indice > 0) {
+				assertTrue("faixa anterior tambem contem " + valor, HistogramaDeLatencia.limiteSuperior(indice - 1) < valor);
+			}
+			anterior = indice;
+		}
+	}
+
+	@Test
+	public void percentisDevemFicarAUmPorCentoDoValorReal() {
+		HistogramaDeLatencia histograma = new HistogramaDeLatencia();
+		for (long milis = 1; milis <= 1000; milis++) {
+			histograma.registra(milis * 1000);
+		}
+
+		assertEquals(500000, histograma.percentil(50), 5000);
+		assertEquals(990000, histograma.percentil(99), 9900);
+		assertEquals(999000, histograma.percentil(99.9), 9990);
+		assertEquals(1000000, histograma.maximo(), 10000);
+	}
+
+	@Test
+	public void somaDeveJuntarAsContagensELatenciaNegativaContaComoZero() {
+		HistogramaDeLatencia primeiro = new HistogramaDeLatencia();
+		HistogramaDeLatencia segundo = new HistogramaDeLatencia();
+		primeiro.registra(-5);
+		segundo.registra(300);
+		segundo.registra(300);
+
+		primeiro.soma(segundo);
+
+		assertEquals(3, primeiro.total());
+		assertEquals(0, primeiro.percentil(33));
+		assertTrue(primeiro.percentil(34) >= 300);
+		assertEquals(0, new HistogramaDeLatencia().percentil(99));
+	}
+}
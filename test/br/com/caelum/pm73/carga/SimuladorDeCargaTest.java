@@ -0,0 +1,76 @@
+package br.com.caelum.pm73.carga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SimuladorDeCargaTest {
+
+	@Test
+	public void latenciaDeveContarDoInstantePrevistoEIncluirOTempoNaFila() throws InterruptedException {
+		// 10 disparos a cada 10ms para uma unica thread que leva 30ms em cada um
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		HistogramaDeLatencia latencias = new HistogramaDeLatencia();
+		AtomicInteger terminadas = new AtomicInteger();
+
+		long inicio = System.nanoTime();
+		SimuladorDeCarga.disparaEmMalhaAberta(executor, 100, inicio, inicio + TimeUnit.MILLISECONDS.toNanos(100),
+				previsto -> {
+					dorme(30);
+					latencias.registra(SimuladorDeCarga.latenciaDesde(previsto));
+					terminadas.incrementAndGet();
+				});
+		int terminadasAoFimDosDisparos = terminadas.get();
+
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+		// a k-esima termina depois de 30(k + 1)ms mas estava prevista para 10k ms
+		assertTrue("os disparos esperaram as tarefas", terminadasAoFimDosDisparos < 10);
+		assertEquals(10, latencias.total());
+		assertTrue(latencias.percentil(10) >= TimeUnit.MILLISECONDS.toMicros(30));
+		assertTrue(latencias.percentil(50) >= TimeUnit.MILLISECONDS.toMicros(30 + 20 * 4));
+		assertTrue(latencias.maximo() >= TimeUnit.MILLISECONDS.toMicros(30 + 20 * 9));
+	}
+
+	@Test
+	public void deveRecusarParametrosInvalidosComMensagemClara() {
+		recusa("quentes", "0", "quentes deve ser um inteiro entre 1 e 200: 0");
+		recusa("threads", "-1", "threads deve ser um inteiro entre 1");
+		recusa("taxa", "0", "taxa deve ser um inteiro entre 1");
+		recusa("duracao", "dez", "duracao deve ser um inteiro entre 1");
+		recusa("relatorio", "0", "relatorio deve ser um inteiro entre 1");
+		recusa("mix", "navegar:0,lance:0", "mix precisa de pesos com soma entre 1");
+		recusa("mix", "navegar:-1", "mix espera operacao:peso");
+		recusa("mix", "comprar:10", "mix espera operacao:peso");
+		recusa("quente", "5", "parametro desconhecido: quente");
+	}
+
+	private static void recusa(String chave, String valor, String mensagem) {
+		Map<String, String> parametros = new HashMap<String, String>();
+		parametros.put(chave, valor);
+		try {
+			new SimuladorDeCarga(parametros);
+			fail("aceitou " + chave + "=" + valor);
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith(mensagem));
+		}
+	}
+
+	private static void dorme(long milis) {
+		try {
+			TimeUnit.MILLISECONDS.sleep(milis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package br.com.caelum.pm73.dao;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.tool.hbm2ddl.SchemaExport;
+import org.hsqldb.jdbc.JDBCDataSource;
+
+/**
+ * HSQLDB em memoria com as tabelas recriadas a partir do mapeamento. Testes
+ * que comitam usam um destes no lugar de caelum.db, que esta versionado:
+ *
+ * <pre>
+ * session = BancoEmMemoria.limpo("leilaoDao").getSession();
+ * </pre>
+ */
+public final class BancoEmMemoria {
+
+	private BancoEmMemoria() {
+	}
+
+	/** Apaga e recria as tabelas do banco {@code nome}; nada sobra do teste anterior. */
+	public static CriadorDeSessao limpo(String nome) {
+		CriadorDeSessao criador = new CriadorDeSessao("jdbc:hsqldb:mem:" + nome);
+		new SchemaExport(criador.getConfig()).create(false, true);
+		return criador;
+	}
+
+	/**
+	 * Como {@link #limpo}, com as conexoes passando pelo contador. So vale se
+	 * nenhuma sessao do banco {@code nome} tiver sido aberta antes.
+	 */
+	public static CriadorDeSessao contandoLotes(String nome, ContadorDeLotes contador) {
+		JDBCDataSource hsqldb = new JDBCDataSource();
+		hsqldb.setUrl("jdbc:hsqldb:mem:" + nome);
+
+		CriadorDeSessao criador = new CriadorDeSessao("jdbc:hsqldb:mem:" + nome);
+		criador.getConfig().getProperties().put(Environment.DATASOURCE, contador.contando(hsqldb));
+		new SchemaExport(criador.getConfig()).create(false, true);
+		return criador;
+	}
+}
@@ -0,0 +1,56 @@
+package br.com.caelum.pm73.dao;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+/**
+ * Conta os lotes JDBC que chegam de fato ao banco: cada executeBatch e os
+ * comandos acumulados por addBatch. O {@link MedidorDeSql} so ve comandos
+ * preparados, que sao os mesmos com ou sem lote.
+ *
+ * <pre>
+ * CriadorDeSessao criador = BancoEmMemoria.contandoLotes("lotes", contador);
+ * </pre>
+ */
+public class ContadorDeLotes {
+
+	private final AtomicLong lotes = new AtomicLong();
+	private final AtomicLong comandosEmLote = new AtomicLong();
+
+	/** Vezes que executeBatch foi chamado. */
+	public long lotes() {
+		return lotes.get();
+	}
+
+	public long comandosEmLote() {
+		return comandosEmLote.get();
+	}
+
+	DataSource contando(DataSource fonte) {
+		return (DataSource) observa(DataSource.class, fonte);
+	}
+
+	/** Conexoes e comandos devolvidos tambem sao observados. */
+	private Object observa(Class<?> tipo, Object alvo) {
+		return Proxy.newProxyInstance(tipo.getClassLoader(), new Class<?>[] { tipo }, (proxy, metodo, args) -> {
+			if (metodo.getName().equals("addBatch")) comandosEmLote.incrementAndGet();
+			if (metodo.getName().startsWith("execute") && metodo.getName().endsWith("Batch")) lotes.incrementAndGet();
+
+			Object resultado;
+			try {
+				resultado = metodo.invoke(alvo, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+
+			Class<?> retorno = metodo.getReturnType();
+			boolean observado = retorno == Connection.class || Statement.class.isAssignableFrom(retorno);
+			return observado && resultado != null ? observa(retorno, resultado) : resultado;
+		});
+	}
+}
@@ -0,0 +1,122 @@
+package br.com.caelum.pm73.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.ExportadorDeDados.Formato;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.LeilaoBuilder;
+import br.com.caelum.pm73.dominio.Usuario;
+
+public class ExportadorDeDadosTest {
+
+	private Session session;
+	private LeilaoDao leilaoDao;
+	private UsuarioDao usuarioDao;
+	private ExportadorDeDados exportador;
+
+	@Before
+	public void antes() {
+		session = new CriadorDeSessao().getSession();
+		leilaoDao = new LeilaoDao(session);
+		usuarioDao = new UsuarioDao(session);
+		exportador = new ExportadorDeDados(session);
+
+		session.beginTransaction();
+	}
+
+	@After
+	public void depois() {
+		session.getTransaction().rollback();
+		session.close();
+	}
+
+	@Test
+	public void deveExportarLeiloesEmCsvEscapandoONome() throws Exception {
+		Usuario dono = new Usuario("Murilo", "murilo@cassio.com.br");
+		Leilao leilao = new LeilaoBuilder().comDono(dono).comNome("Geladeira, \"frost free\"")
+				.comValor(1500.0).constroi();
+
+		usuarioDao.salvar(dono);
+		leilaoDao.salvar(leilao);
+
+		ByteArrayOutputStream saida = new ByteArrayOutputStream();
+		long linhas = exportador.exportaLeiloes(Channels.newChannel(saida), Formato.CSV);
+
+		String[] csv = new String(saida.toByteArray(), StandardCharsets.UTF_8).split("\n");
+
+		assertEquals(1L, linhas);
+		assertEquals("id,nome,valorInicial,donoId,dataAbertura,usado,encerrado", csv[0]);
+		assertTrue(csv[1].startsWith(leilao.getId() + ",\"Geladeira, \"\"frost free\"\"\",1500.00," + dono.getId() + ","));
+		assertTrue(csv[1].endsWith(",false,false"));
+	}
+
+	@Test
+	public void leilaoSemValorInicialDeveSairVazioNoCsvEMarcadoNoBinario() throws Exception {
+		Usuario dono = new Usuario("Murilo", "murilo@cassio.com.br");
+		Leilao leilao = new LeilaoBuilder().comDono(dono).comNome("Geladeira").semValor().constroi();
+
+		usuarioDao.salvar(dono);
+		leilaoDao.salvar(leilao);
+
+		ByteArrayOutputStream csv = new ByteArrayOutputStream();
+		exportador.exportaLeiloes(Channels.newChannel(csv), Formato.CSV);
+
+		assertTrue(new String(csv.toByteArray(), StandardCharsets.UTF_8)
+				.contains("\n" + leilao.getId() + ",Geladeira,," + dono.getId() + ","));
+
+		ByteArrayOutputStream saida = new ByteArrayOutputStream();
+		exportador.exportaLeiloes(Channels.newChannel(saida), Formato.BINARIO);
+
+		ByteBuffer binario = ByteBuffer.wrap(saida.toByteArray());
+		binario.position(6);
+		assertEquals(leilao.getId(), binario.getInt());
+		assertEquals(dono.getId(), binario.getInt());
+		binario.getLong();
+		assertEquals(Long.MIN_VALUE, binario.getLong());
+	}
+
+	@Test
+	public void deveExportarLancesEmRegistrosBinariosDeTamanhoFixo() throws Exception {
+		Usuario dono = new Usuario("Cassio", "cassio@santos.com.br");
+		Usuario comprador = new Usuario("Murilo", "murilo@cassio.com.br");
+		Calendar data = Calendar.getInstance();
+		Leilao leilao = new LeilaoBuilder().comDono(dono)
+				.comLance(new Lance(data, comprador, 100.0))
+				.comLance(new Lance(data, comprador, 200.0))
+				.constroi();
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(comprador);
+		leilaoDao.salvar(leilao);
+
+		ByteArrayOutputStream saida = new ByteArrayOutputStream();
+		long linhas = exportador.exportaLances(Channels.newChannel(saida), Formato.BINARIO);
+
+		ByteBuffer binario = ByteBuffer.wrap(saida.toByteArray());
+
+		assertEquals(2L, linhas);
+		assertEquals(6 + 2 * 28, binario.remaining());
+		assertEquals(ExportadorDeDados.MAGICO, binario.getInt());
+		assertEquals(ExportadorDeDados.VERSAO, binario.get());
+		assertEquals(ExportadorDeDados.TIPO_LANCE, binario.get());
+
+		binario.getInt();
+		assertEquals(leilao.getId(), binario.getInt());
+		assertEquals(comprador.getId(), binario.getInt());
+		assertEquals(data.getTimeInMillis(), binario.getLong());
+		assertEquals(10000L, binario.getLong());
+	}
+}
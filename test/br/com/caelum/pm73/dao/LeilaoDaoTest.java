@@ -1,7 +1,13 @@
 package br.com.caelum.pm73.dao;
 
+import static br.com.caelum.pm73.dao.MedidorDeSql.Metrica.COLECOES_BUSCADAS;
+import static br.com.caelum.pm73.dao.MedidorDeSql.Metrica.ENTIDADES_BUSCADAS;
+import static br.com.caelum.pm73.dao.MedidorDeSql.Metrica.INSERTS;
+import static br.com.caelum.pm73.dao.MedidorDeSql.Metrica.LINHAS;
+import static br.com.caelum.pm73.dao.MedidorDeSql.Metrica.SELECTS;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 import java.util.Calendar;
 import java.util.List;
@@ -11,6 +17,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import br.com.caelum.pm73.dominio.Dinheiro;
 import br.com.caelum.pm73.dominio.Lance;
 import br.com.caelum.pm73.dominio.Leilao;
 import br.com.caelum.pm73.dominio.LeilaoBuilder;
@@ -19,13 +26,15 @@ import br.com.caelum.pm73.dominio.Usuario;
 public class LeilaoDaoTest {
 	
 	private Session session;
+	private MedidorDeSql medidor;
 	private LeilaoDao leilaoDao;
 	private UsuarioDao usuarioDao;
 
 	@Before
 	public void antes() {
 		// criamos a sessao e a passamos para o dao
-		session = new CriadorDeSessao().getSession();
+		medidor = new MedidorDeSql();
+		session = medidor.abreSessao(BancoEmMemoria.limpo("leilaoDao"));
 		leilaoDao = new LeilaoDao(session);
 		usuarioDao = new UsuarioDao(session);
 		
@@ -42,6 +51,21 @@ public class LeilaoDaoTest {
 		session.close();
 	}
 	
+	/**
+	 * Para testes que dependem do commit, como os do indice. O banco e' em
+	 * memoria e recriado a cada teste, entao nada precisa ser apagado.
+	 */
+	private void comita() {
+		session.getTransaction().commit();
+		session.beginTransaction();
+	}
+	
+	private void desfaz() {
+		session.getTransaction().rollback();
+		session.clear();
+		session.beginTransaction();
+	}
+	
 	@Test
 	public void deveContarLeiloesNaoEncerrados() {
 		Usuario murilo = new Usuario("Murilo", "murilo@cassio.com.br");
@@ -298,7 +322,6 @@ public class LeilaoDaoTest {
         List<Leilao> leiloes = leilaoDao.listaLeiloesDoUsuario(comprador1);
         assertEquals(1, leiloes.size());
 		assertEquals(leilao, leiloes.get(0));
-		// Esse teste terá um BUG. O método devolve uma lista de leilões contendo repetições!
 	}
 	
 	@Test
@@ -345,4 +368,327 @@ public class LeilaoDaoTest {
 	}
 
 
+	@Test
+	public void deveBuscarLeiloesPorPrefixoDosTermosDoNome() {
+		Usuario murilo = new Usuario("Murilo", "murilo@indice.com.br");
+		LeilaoDao daoComIndice = new LeilaoDao(session, new IndiceDeLeiloes());
+
+		Leilao geladeira = new Leilao("Geladeira Frost Free", 1500.0, murilo, false);
+		Leilao geladeiraUsada = new Leilao("Geladeira Duplex", 900.0, murilo, true);
+		Leilao fogao = new Leilao("Fogão 4 bocas", 700.0, murilo, false);
+
+		usuarioDao.salvar(murilo);
+		daoComIndice.salvar(geladeira);
+		daoComIndice.salvar(geladeiraUsada);
+		daoComIndice.salvar(fogao);
+
+		assertEquals(0, daoComIndice.buscaPorNome("gela", null, null).size());
+		comita();
+
+		assertEquals(2, daoComIndice.buscaPorNome("gela", null, null).size());
+		assertEquals(1, daoComIndice.buscaPorNome("fogao boc", null, null).size());
+
+		List<Leilao> novos = daoComIndice.buscaPorNome("Geladeira", null, false);
+		assertEquals(1, novos.size());
+		assertEquals("Geladeira Frost Free", novos.get(0).getNome());
+	}
+
+	@Test
+	public void indiceDeveAcompanharAtualizacaoEDelecao() {
+		Usuario murilo = new Usuario("Murilo", "murilo@indice.com.br");
+		LeilaoDao daoComIndice = new LeilaoDao(session, new IndiceDeLeiloes());
+
+		Leilao leilao = new Leilao("PS4", 1500.0, murilo, false);
+		usuarioDao.salvar(murilo);
+		daoComIndice.salvar(leilao);
+		comita();
+
+		leilao.setNome("PS5");
+		leilao.encerra();
+		daoComIndice.atualiza(leilao);
+		comita();
+
+		assertEquals(0, daoComIndice.buscaPorNome("ps4", null, null).size());
+		assertEquals(0, daoComIndice.buscaPorNome("ps5", false, null).size());
+		assertEquals(1, daoComIndice.buscaPorNome("ps5", true, null).size());
+
+		daoComIndice.deleta(leilao);
+		comita();
+
+		assertEquals(0, daoComIndice.buscaPorNome("ps5", null, null).size());
+	}
+
+	@Test
+	public void indiceNaoDeveGuardarAlteracoesDeTransacaoDesfeita() {
+		Usuario murilo = new Usuario("Murilo", "murilo@indice.com.br");
+		IndiceDeLeiloes indice = new IndiceDeLeiloes();
+		LeilaoDao daoComIndice = new LeilaoDao(session, indice);
+
+		Leilao mantido = new Leilao("Geladeira", 1500.0, murilo, false);
+		usuarioDao.salvar(murilo);
+		daoComIndice.salvar(mantido);
+		comita();
+
+		daoComIndice.salvar(new Leilao("Fogão", 700.0, murilo, false));
+		daoComIndice.deleta(mantido);
+		desfaz();
+
+		assertEquals(1, indice.tamanho());
+		assertEquals(1, daoComIndice.buscaPorNome("gela", null, null).size());
+		assertEquals(0, daoComIndice.buscaPorNome("fogao", null, null).size());
+	}
+
+	@Test
+	public void buscaPorNomeDeveConfirmarONomeNoBanco() {
+		Usuario murilo = new Usuario("Murilo", "murilo@indice.com.br");
+		LeilaoDao daoComIndice = new LeilaoDao(session, new IndiceDeLeiloes());
+		
+		Leilao leilao = new Leilao("Geladeira", 1500.0, murilo, false);
+		usuarioDao.salvar(murilo);
+		daoComIndice.salvar(leilao);
+		comita();
+		
+		// renomeado direto na entidade, sem passar por atualiza
+		leilao.setNome("Fogão");
+		comita();
+		
+		assertEquals(0, daoComIndice.buscaPorNome("gela", null, null).size());
+	}
+	
+	@Test
+	public void indiceDeveRecusarAlteracoesForaDeTransacao() {
+		IndiceDeLeiloes indice = new IndiceDeLeiloes();
+		LeilaoDao daoComIndice = new LeilaoDao(session, indice);
+		Usuario murilo = new Usuario("Murilo", "murilo@indice.com.br");
+		usuarioDao.salvar(murilo);
+		comita();
+		session.getTransaction().rollback();
+		
+		try {
+			daoComIndice.salvar(new Leilao("Geladeira", 1500.0, murilo, false));
+			fail();
+		} catch (IllegalStateException e) {
+		} finally {
+			session.beginTransaction();
+		}
+		
+		assertEquals(0, indice.tamanho());
+		assertEquals(0L, (long) leilaoDao.total());
+	}
+	
+	@Test
+	public void buscaPorNomeDeveConfirmarOsFiltrosNoBanco() {
+		Usuario murilo = new Usuario("Murilo", "murilo@cassio.com.br");
+		IndiceDeLeiloes indice = new IndiceDeLeiloes();
+		LeilaoDao daoComIndice = new LeilaoDao(session, indice);
+
+		Leilao geladeira = new Leilao("Geladeira", 1500.0, murilo, false);
+		usuarioDao.salvar(murilo);
+		daoComIndice.salvar(geladeira);
+		indice.indexa(geladeira);
+
+		geladeira.encerra();
+		session.flush();
+
+		assertEquals(0, daoComIndice.buscaPorNome("gela", false, null).size());
+		assertEquals(1, daoComIndice.buscaPorNome("gela", null, false).size());
+	}
+
+	@Test
+	public void deveConstruirOIndiceAPartirDoBanco() {
+		Usuario murilo = new Usuario("Murilo", "murilo@cassio.com.br");
+
+		usuarioDao.salvar(murilo);
+		leilaoDao.salvar(new Leilao("Geladeira", 1500.0, murilo, false));
+		leilaoDao.salvar(new Leilao("PS4", 1500.0, murilo, false));
+
+		IndiceDeLeiloes indice = IndiceDeLeiloes.constroi(session);
+
+		assertEquals(2, indice.tamanho());
+		assertEquals(1, indice.busca("ps", null, null).size());
+	}
+
+	@Test
+	public void novosDeveCaberNoOrcamentoDeSql() {
+		Usuario murilo = new Usuario("Murilo", "murilo@cassio.com.br");
+
+		usuarioDao.salvar(murilo);
+		leilaoDao.salvar(new Leilao("Geladeira", 1500.0, murilo, false));
+		leilaoDao.salvar(new Leilao("Fogão", 700.0, murilo, false));
+		leilaoDao.salvar(new Leilao("PS4", 1500.0, murilo, true));
+
+		session.flush();
+		session.clear();
+
+		List<Leilao> novos = medidor.mede(() -> leilaoDao.novos())
+				.exatamente(SELECTS, 1)
+				.exatamente(ENTIDADES_BUSCADAS, 0)
+				.exatamente(LINHAS, 2)
+				.resultado();
+
+		assertEquals(2, novos.size());
+	}
+
+	@Test
+	public void salvarDeveInserirOLeilaoESeusLancesSemSelects() {
+		Usuario dono = new Usuario("Cassio", "cassio@santos.com.br");
+		Usuario comprador = new Usuario("Murilo", "murilo@cassio.com.br");
+		Leilao leilao = new LeilaoBuilder().comDono(dono)
+				.comLance(new Lance(Calendar.getInstance(), comprador, 100.0))
+				.comLance(new Lance(Calendar.getInstance(), comprador, 200.0))
+				.comLance(new Lance(Calendar.getInstance(), comprador, 300.0))
+				.constroi();
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(comprador);
+
+		medidor.mede(() -> leilaoDao.salvar(leilao))
+				.exatamente(INSERTS, 4)
+				.exatamente(SELECTS, 0);
+	}
+
+	@Test
+	public void listaLeiloesDoUsuarioNaoDeveBuscarUmDonoPorLeilao() {
+		Usuario comprador = new Usuario("Murilo", "murilo@cassio.com.br");
+		usuarioDao.salvar(comprador);
+		for (int i = 0; i < 5; i++) {
+			Usuario dono = new Usuario("Dono " + i, "dono" + i + "@santos.com.br");
+			usuarioDao.salvar(dono);
+			leilaoDao.salvar(new LeilaoBuilder().comDono(dono)
+					.comLance(new Lance(Calendar.getInstance(), comprador, 100.0))
+					.constroi());
+		}
+
+		session.flush();
+		session.clear();
+
+		List<Leilao> leiloes = medidor.mede(() -> leilaoDao.listaLeiloesDoUsuario(comprador))
+				.exatamente(SELECTS, 1)
+				.noMaximo(COLECOES_BUSCADAS, 0)
+				.resultado();
+
+		assertEquals(5, leiloes.size());
+	}
+
+	@Test
+	public void planoComDonoDeveTrazerODonoNaMesmaConsulta() {
+		Usuario murilo = new Usuario("Murilo", "murilo@cassio.com.br");
+
+		usuarioDao.salvar(murilo);
+		leilaoDao.salvar(new Leilao("Geladeira", 1500.0, murilo, false));
+		leilaoDao.salvar(new Leilao("PS4", 1500.0, murilo, false));
+
+		session.flush();
+		session.clear();
+
+		medidor.mede(() -> {
+			for (Leilao leilao : leilaoDao.novos(PlanoDeBusca.DETALHE_COM_DONO)) {
+				assertEquals("Murilo", leilao.getDono().getNome());
+			}
+		}).exatamente(SELECTS, 1);
+	}
+
+	@Test
+	public void planoComLancesDeveTrazerLancesEQuemDeuCadaUmSemRepetirLeiloes() {
+		Usuario dono = new Usuario("Cassio", "cassio@santos.com.br");
+		Usuario comprador1 = new Usuario("Murilo", "murilo@cassio.com.br");
+		Usuario comprador2 = new Usuario("Santos", "santos@sensei.com.br");
+		Leilao leilao = new LeilaoBuilder()
+		.comDono(dono)
+		.comLance(new Lance(Calendar.getInstance(), comprador1, 100.0))
+		.comLance(new Lance(Calendar.getInstance(), comprador2, 200.0))
+		.constroi();
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(comprador1);
+		usuarioDao.salvar(comprador2);
+		leilaoDao.salvar(leilao);
+
+		session.flush();
+		session.clear();
+
+		Leilao doBanco = medidor.mede(() -> {
+			Leilao detalhe = leilaoDao.porId(leilao.getId(), PlanoDeBusca.DETALHE_COM_LANCES);
+			for (Lance lance : detalhe.getLances()) {
+				lance.getUsuario().getNome();
+			}
+			detalhe.getDono().getNome();
+			return detalhe;
+		}).exatamente(SELECTS, 1).resultado();
+
+		assertEquals(2, doBanco.getLances().size());
+		assertEquals(1, leilaoDao.novos(PlanoDeBusca.DETALHE_COM_LANCES).size());
+	}
+
+	@Test
+	public void disputadosEntreDeveIncluirOsLimitesExatosEmCentavos() {
+		Usuario dono = new Usuario("Cassio", "cassio@santos.com.br");
+		Usuario murilo = new Usuario("Murilo", "murilo@cassio.com.br");
+
+		Leilao leilao = new LeilaoBuilder().comNome("PS4").comValor(Dinheiro.emCentavos(30))
+		.comDono(dono)
+		.comLance(new Lance(Calendar.getInstance(), murilo, 1.0))
+		.comLance(new Lance(Calendar.getInstance(), murilo, 2.0))
+		.comLance(new Lance(Calendar.getInstance(), murilo, 3.0))
+		.constroi();
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(murilo);
+		leilaoDao.salvar(leilao);
+
+		assertEquals(1, leilaoDao.disputadosEntre(0.1 + 0.2, 1.0).size());
+		assertEquals(1, leilaoDao.disputadosEntre(Dinheiro.ZERO, Dinheiro.emCentavos(30)).size());
+	}
+
+	@Test
+	public void leilaoSemValorInicialNaoDeveSerTratadoComoValorZero() {
+		Usuario dono = new Usuario("Cassio", "cassio@santos.com.br");
+		Usuario murilo = new Usuario("Murilo", "murilo@cassio.com.br");
+
+		Leilao semValor = new LeilaoBuilder().comNome("PS4").semValor()
+		.comDono(dono)
+		.comLance(new Lance(Calendar.getInstance(), murilo, 1.0))
+		.comLance(new Lance(Calendar.getInstance(), murilo, 2.0))
+		.comLance(new Lance(Calendar.getInstance(), murilo, 3.0))
+		.constroi();
+		Leilao comValor = new LeilaoBuilder().comNome("XBox").comValor(300.0)
+		.comDono(dono)
+		.comLance(new Lance(Calendar.getInstance(), murilo, 400.0))
+		.constroi();
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(murilo);
+		leilaoDao.salvar(semValor);
+		leilaoDao.salvar(comValor);
+		session.flush();
+		session.clear();
+
+		assertNull(leilaoDao.porId(semValor.getId()).getValorInicial());
+		assertEquals(0, leilaoDao.disputadosEntre(Dinheiro.ZERO, Dinheiro.emReais(100.0)).size());
+		assertEquals(300.0, leilaoDao.getValorInicialMedioDoUsuario(murilo), 0.0001);
+	}
+
+	@Test
+	public void deveDeletarLeiloesEncerradosJuntoComSeusLances() {
+		Usuario dono = new Usuario("Cassio", "cassio@santos.com.br");
+		Usuario murilo = new Usuario("Murilo", "murilo@cassio.com.br");
+		Leilao encerrado = new LeilaoBuilder().comDono(dono).encerrado()
+		.comLance(new Lance(Calendar.getInstance(), murilo, 100.0))
+		.constroi();
+		Leilao ativo = new LeilaoBuilder().comDono(dono)
+		.comLance(new Lance(Calendar.getInstance(), murilo, 100.0))
+		.constroi();
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(murilo);
+		leilaoDao.salvar(encerrado);
+		leilaoDao.salvar(ativo);
+
+		leilaoDao.deletaEncerrados();
+		session.clear();
+
+		assertNull(leilaoDao.porId(encerrado.getId()));
+		assertEquals(1, leilaoDao.porId(ativo.getId()).getLances().size());
+	}
+
 }
@@ -0,0 +1,148 @@
+package br.com.caelum.pm73.dao;
+
+import static org.junit.Assert.fail;
+
+import java.util.Locale;
+import java.util.function.Supplier;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
+
+/**
+ * Conta o SQL emitido por uma chamada de DAO para que o teste declare um
+ * orcamento e falhe quando ele for estourado, por exemplo:
+ *
+ * <pre>
+ * medidor.mede(() -> leilaoDao.novos()).exatamente(SELECTS, 1);
+ * </pre>
+ *
+ * Os comandos sao contados pelo interceptor da sessao; entidades e linhas vem
+ * das {@link Statistics} da SessionFactory, que so ficam ligadas durante a
+ * medicao para nao pesar nos outros testes.
+ */
+public class MedidorDeSql extends EmptyInterceptor {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * {@code LINHAS} soma apenas as linhas devolvidas por consultas HQL e
+	 * named queries; entidades lidas por get, load ou busca pelo id aparecem
+	 * em {@code ENTIDADES_CARREGADAS} e {@code ENTIDADES_BUSCADAS}.
+	 */
+	public enum Metrica {
+		COMANDOS, SELECTS, INSERTS, UPDATES, DELETES,
+		ENTIDADES_CARREGADAS, ENTIDADES_BUSCADAS, COLECOES_BUSCADAS, LINHAS
+	}
+
+	private final long[] comandos = new long[Metrica.values().length];
+	private Session session;
+	private Statistics estatisticas;
+
+	public Session abreSessao(CriadorDeSessao criador) {
+		session = criador.getSession(this);
+		estatisticas = session.getSessionFactory().getStatistics();
+		return session;
+	}
+
+	@Override
+	public String onPrepareStatement(String sql) {
+		comandos[Metrica.COMANDOS.ordinal()]++;
+		String comando = sql.trim().toLowerCase(Locale.ROOT);
+		if (comando.startsWith("select")) comandos[Metrica.SELECTS.ordinal()]++;
+		else if (comando.startsWith("insert")) comandos[Metrica.INSERTS.ordinal()]++;
+		else if (comando.startsWith("update")) comandos[Metrica.UPDATES.ordinal()]++;
+		else if (comando.startsWith("delete")) comandos[Metrica.DELETES.ordinal()]++;
+		return sql;
+	}
+
+	public Medicao<Void> mede(Runnable chamada) {
+		return mede(() -> {
+			chamada.run();
+			return null;
+		});
+	}
+
+	/**
+	 * Executa a chamada depois de descarregar as alteracoes pendentes da
+	 * sessao, para que so o SQL da propria chamada seja contado.
+	 */
+	public <T> Medicao<T> mede(Supplier<T> chamada) {
+		session.flush();
+		boolean estavamLigadas = estatisticas.isStatisticsEnabled();
+		estatisticas.setStatisticsEnabled(true);
+		long[] antes;
+		long[] depois;
+		T resultado;
+		try {
+			antes = fotografa();
+			resultado = chamada.get();
+			depois = fotografa();
+		} finally {
+			estatisticas.setStatisticsEnabled(estavamLigadas);
+		}
+
+		long[] diferenca = new long[depois.length];
+		for (int i = 0; i < depois.length; i++) {
+			diferenca[i] = depois[i] - antes[i];
+		}
+		return new Medicao<T>(resultado, diferenca);
+	}
+
+	private long[] fotografa() {
+		long[] foto = comandos.clone();
+		foto[Metrica.ENTIDADES_CARREGADAS.ordinal()] = estatisticas.getEntityLoadCount();
+		foto[Metrica.ENTIDADES_BUSCADAS.ordinal()] = estatisticas.getEntityFetchCount();
+		foto[Metrica.COLECOES_BUSCADAS.ordinal()] = estatisticas.getCollectionFetchCount();
+
+		long linhas = 0;
+		for (String query : estatisticas.getQueries()) {
+			linhas += estatisticas.getQueryStatistics(query).getExecutionRowCount();
+		}
+		foto[Metrica.LINHAS.ordinal()] = linhas;
+		return foto;
+	}
+
+	public static class Medicao<T> {
+
+		private final T resultado;
+		private final long[] valores;
+
+		Medicao(T resultado, long[] valores) {
+			this.resultado = resultado;
+			this.valores = valores;
+		}
+
+		public long get(Metrica metrica) {
+			return valores[metrica.ordinal()];
+		}
+
+		public Medicao<T> exatamente(Metrica metrica, long esperado) {
+			if (get(metrica) != esperado) {
+				fail("esperava " + esperado + " " + metrica + " mas foram " + get(metrica) + " " + this);
+			}
+			return this;
+		}
+
+		public Medicao<T> noMaximo(Metrica metrica, long limite) {
+			if (get(metrica) > limite) {
+				fail("orcamento de " + limite + " " + metrica + " estourado com " + get(metrica) + " " + this);
+			}
+			return this;
+		}
+
+		public T resultado() {
+			return resultado;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder texto = new StringBuilder("{");
+			for (Metrica metrica : Metrica.values()) {
+				if (texto.length() > 1) texto.append(", ");
+				texto.append(metrica).append('=').append(get(metrica));
+			}
+			return texto.append('}').toString();
+		}
+	}
+}
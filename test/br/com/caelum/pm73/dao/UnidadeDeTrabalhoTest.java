@@ -0,0 +1,168 @@
+package br.com.caelum.pm73.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.TransactionException;
+import org.hibernate.exception.LockAcquisitionException;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dominio.Usuario;
+
+public class UnidadeDeTrabalhoTest {
+
+	private UnidadeDeTrabalho unidade;
+
+	@Before
+	public void antes() {
+		unidade = new UnidadeDeTrabalho(new CriadorDeSessao(), 3);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void daoSemSessaoPrecisaDeUmaUnidadeAberta() {
+		new UsuarioDao().porNomeEEmail("Ninguem", "ninguem@unidade.com.br");
+	}
+
+	@Test
+	public void unidadeInternaParticipaDaExternaEASessaoEFechadaNoFim() {
+		Session[] sessoes = new Session[2];
+
+		unidade.executarEmTransacao(() -> {
+			sessoes[0] = UnidadeDeTrabalho.sessaoAtual();
+			unidade.executarEmTransacao(() -> {
+				sessoes[1] = UnidadeDeTrabalho.sessaoAtual();
+			});
+		});
+
+		assertSame(sessoes[0], sessoes[1]);
+		assertFalse(sessoes[0].isOpen());
+	}
+
+	@Test
+	public void deveDesfazerATransacaoQuandoOTrabalhoFalha() {
+		try {
+			unidade.executarEmTransacao(() -> {
+				new UsuarioDao().salvar(new Usuario("Desfeito", "desfeito@unidade.com.br"));
+				UnidadeDeTrabalho.sessaoAtual().flush();
+				throw new IllegalArgumentException("falhou");
+			});
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+
+		Usuario salvo = unidade.executarEmTransacao(() ->
+				new UsuarioDao().porNomeEEmail("Desfeito", "desfeito@unidade.com.br"));
+
+		assertNull(salvo);
+	}
+
+	@Test
+	public void deveDesfazerATransacaoQuandoOCommitFalha() {
+		CriadorDeSessao banco = BancoEmMemoria.limpo("unidade");
+		AtomicInteger rollbacks = new AtomicInteger();
+		UnidadeDeTrabalho comCommitQueFalha = new UnidadeDeTrabalho(new CriadorDeSessao("jdbc:hsqldb:mem:unidade") {
+			@Override
+			public Session getSession() {
+				return sessaoComCommitQueFalha(banco.getSession(), rollbacks);
+			}
+		}, 3);
+
+		try {
+			comCommitQueFalha.executarEmTransacao(() -> {
+				new UsuarioDao().salvar(new Usuario("Desfeito", "desfeito@unidade.com.br"));
+				UnidadeDeTrabalho.sessaoAtual().flush();
+			});
+			fail();
+		} catch (TransactionException e) {
+		}
+
+		Usuario salvo = new UnidadeDeTrabalho(banco, 1).executarEmTransacao(() ->
+				new UsuarioDao().porNomeEEmail("Desfeito", "desfeito@unidade.com.br"));
+
+		assertEquals(1, rollbacks.get());
+		assertNull(salvo);
+	}
+
+	@Test
+	public void deveRepetirOTrabalhoEmConflitoTransitorio() {
+		AtomicInteger tentativas = new AtomicInteger();
+
+		String resultado = unidade.executarEmTransacao(() -> {
+			if (tentativas.incrementAndGet() < 3) {
+				throw new LockAcquisitionException("deadlock", new SQLException("deadlock", "40001"));
+			}
+			return "ok";
+		});
+
+		assertEquals("ok", resultado);
+		assertEquals(3, tentativas.get());
+	}
+
+	@Test
+	public void naoDeveRepetirErroQueNaoEConflito() {
+		AtomicInteger tentativas = new AtomicInteger();
+
+		try {
+			unidade.executarEmTransacao(() -> {
+				tentativas.incrementAndGet();
+				throw new IllegalStateException("erro de programacao");
+			});
+			fail();
+		} catch (IllegalStateException e) {
+		}
+
+		assertEquals(1, tentativas.get());
+	}
+
+	/**
+	 * Sessao cujo commit falha como um commit JDBC recusado: a transacao passa
+	 * a se dizer inativa, mas continua aberta ate alguem desfaze-la.
+	 */
+	private static Session sessaoComCommitQueFalha(Session session, AtomicInteger rollbacks) {
+		return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class },
+				(proxy, metodo, args) -> {
+					Object resultado = invoca(session, metodo, args);
+					if (!metodo.getName().equals("beginTransaction")) return resultado;
+					return transacaoComCommitQueFalha((Transaction) resultado, rollbacks);
+				});
+	}
+
+	private static Transaction transacaoComCommitQueFalha(Transaction transacao, AtomicInteger rollbacks) {
+		boolean[] falhou = new boolean[1];
+		return (Transaction) Proxy.newProxyInstance(Transaction.class.getClassLoader(), new Class<?>[] { Transaction.class },
+				(proxy, metodo, args) -> {
+					switch (metodo.getName()) {
+					case "commit":
+						falhou[0] = true;
+						throw new TransactionException("commit recusado");
+					case "isActive":
+						return !falhou[0];
+					case "rollback":
+						rollbacks.incrementAndGet();
+						return invoca(transacao, metodo, args);
+					default:
+						return invoca(transacao, metodo, args);
+					}
+				});
+	}
+
+	private static Object invoca(Object alvo, Method metodo, Object[] args) throws Throwable {
+		try {
+			return metodo.invoke(alvo, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -1,9 +1,16 @@
 package br.com.caelum.pm73.dao;
 
+import static br.com.caelum.pm73.dao.MedidorDeSql.Metrica.INSERTS;
+import static br.com.caelum.pm73.dao.MedidorDeSql.Metrica.SELECTS;
+import static br.com.caelum.pm73.dao.MedidorDeSql.Metrica.UPDATES;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.hibernate.Session;
 import org.junit.After;
 import org.junit.Before;
@@ -13,12 +20,14 @@ import br.com.caelum.pm73.dominio.Usuario;
 public class UsuarioDaoTest {
 
 	private Session session;
+	private MedidorDeSql medidor;
 	private UsuarioDao usuarioDao;
 
 	@Before
 	public void antes() {
 		// criamos a sessao e a passamos para o dao
-		session = new CriadorDeSessao().getSession();
+		medidor = new MedidorDeSql();
+		session = medidor.abreSessao(new CriadorDeSessao());
 		usuarioDao = new UsuarioDao(session);
 	}
 
@@ -39,6 +48,69 @@ public class UsuarioDaoTest {
 		assertEquals("joao@dasilva.com.br", usuarioDoBanco.getEmail());
 	}
 
+	@Test
+	public void deveAgruparAtualizacoesEmLoteMasNaoInsercoes() {
+		ContadorDeLotes contador = new ContadorDeLotes();
+		MedidorDeSql medidorDoLote = new MedidorDeSql();
+		Session sessionDoLote = medidorDoLote.abreSessao(BancoEmMemoria.contandoLotes("lotes", contador));
+		UsuarioDao usuarioDaoDoLote = new UsuarioDao(sessionDoLote);
+		try {
+			sessionDoLote.beginTransaction();
+			List<Usuario> usuarios = new ArrayList<Usuario>();
+			for (int i = 1; i <= 3; i++) {
+				usuarios.add(new Usuario("Lúcia Lote " + i, "lucia" + i + "@lote.com.br"));
+			}
+
+			medidorDoLote.mede(() -> usuarios.forEach(usuarioDaoDoLote::salvar))
+					.exatamente(INSERTS, 3);
+			assertEquals(0, contador.lotes());
+
+			// um unico comando preparado, enviado em um unico lote com as tres linhas
+			medidorDoLote.mede(() -> {
+				for (Usuario usuario : usuarios) {
+					usuario.setEmail("nova." + usuario.getEmail());
+				}
+				sessionDoLote.flush();
+			}).exatamente(UPDATES, 1);
+			assertEquals(1, contador.lotes());
+			assertEquals(3, contador.comandosEmLote());
+		} finally {
+			sessionDoLote.close();
+		}
+	}
+
+	@Test
+	public void porNomeEEmailDeveResolverOIdPeloCache() {
+		usuarioDao.salvar(new Usuario("Otávio Orçamento", "otavio@orcamento.com.br"));
+		session.flush();
+		session.clear();
+
+		medidor.mede(() -> usuarioDao.porNomeEEmail("Otávio Orçamento", "otavio@orcamento.com.br"))
+				.noMaximo(SELECTS, 2);
+		session.clear();
+
+		Usuario usuario = medidor.mede(() -> usuarioDao.porNomeEEmail("Otávio Orçamento", "otavio@orcamento.com.br"))
+				.exatamente(SELECTS, 1)
+				.resultado();
+
+		assertNotNull(usuario);
+	}
+
+	@Test
+	public void porNomeEEmailNaoDeveDevolverUsuarioRenomeado() {
+		usuarioDao.salvar(new Usuario("Renato Renomeado", "renato@renomeado.com.br"));
+		session.flush();
+		session.clear();
+
+		Usuario renomeado = usuarioDao.porNomeEEmail("Renato Renomeado", "renato@renomeado.com.br");
+		renomeado.setNome("Renato Novo");
+		session.flush();
+		session.clear();
+
+		assertNull(usuarioDao.porNomeEEmail("Renato Renomeado", "renato@renomeado.com.br"));
+		assertEquals(renomeado.getId(), usuarioDao.porNomeEEmail("Renato Novo", "renato@renomeado.com.br").getId());
+	}
+
 	@Test
 	public void deveRetornarNuloSeNaoEncontrarUsuario() {
 		Usuario usuarioDoBanco = usuarioDao.porNomeEEmail("João Joaquim", "joao@joaquim.com.br");
@@ -84,4 +156,25 @@ public class UsuarioDaoTest {
 
 	}
 
+	@Test
+	public void deveBuscarVariosUsuariosPelosIdsNaOrdemPedida() {
+		Usuario murilo = new Usuario("Murilo Santos", "murilo@santos.com");
+		Usuario cassio = new Usuario("Cássio Santos", "cassio@santos.com");
+
+		usuarioDao.salvar(murilo);
+		usuarioDao.salvar(cassio);
+
+		session.flush();
+		session.clear();
+
+		List<Usuario> usuarios = medidor
+				.mede(() -> usuarioDao.porIds(Arrays.asList(cassio.getId(), murilo.getId(), cassio.getId(), -1)))
+				.exatamente(SELECTS, 1)
+				.resultado();
+
+		assertEquals(2, usuarios.size());
+		assertEquals("Cássio Santos", usuarios.get(0).getNome());
+		assertEquals("Murilo Santos", usuarios.get(1).getNome());
+	}
+
 }
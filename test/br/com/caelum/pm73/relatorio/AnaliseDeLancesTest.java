@@ -0,0 +1,262 @@
+package br.com.caelum.pm73.relatorio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.hibernate.Session;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.BancoEmMemoria;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.LeilaoBuilder;
+import br.com.caelum.pm73.dominio.Usuario;
+import br.com.caelum.pm73.relatorio.InstantaneoDeLances.Chave;
+import br.com.caelum.pm73.relatorio.InstantaneoDeLances.Medida;
+
+public class AnaliseDeLancesTest {
+
+	private AnaliseDeLances analise;
+
+	@Before
+	public void antes() {
+		analise = new AnaliseDeLances();
+	}
+
+	@Test
+	public void deveAgruparLancesComDonoEValorInicialDoLeilao() {
+		analise.registraLeilao(1, 10, 10000L);
+		analise.registraLeilao(2, 20, 30000L);
+		analise.registraLance(1, 1, 100, 0L, 11000L);
+		analise.registraLance(2, 2, 100, 0L, 31000L);
+		analise.registraLance(3, 2, 200, 0L, 32000L);
+
+		AgrupamentoDeLances porUsuario = analise.atual().agrupa(Chave.USUARIO, Medida.VALOR_INICIAL);
+
+		assertArrayEquals(new int[] { 100, 200 }, porUsuario.getChaves());
+		assertEquals(2, porUsuario.quantidade(100));
+		assertEquals(200.0, porUsuario.media(100), 0.00001);
+		assertEquals(30000L, porUsuario.maximo(100).getCentavos());
+		assertEquals(0, porUsuario.quantidade(300));
+
+		AgrupamentoDeLances porDono = analise.atual().agrupa(Chave.DONO, Medida.VALOR);
+
+		assertEquals(63000L, porDono.soma(20).getCentavos());
+		assertEquals(11000L, porDono.minimo(10).getCentavos());
+	}
+
+	@Test
+	public void lancesDeLeilaoSemValorInicialNaoDevemEntrarNaMediaDoValorInicial() {
+		analise.registraLeilao(1, 10, null);
+		analise.registraLeilao(2, 10, 10000L);
+		analise.registraLance(1, 1, 100, 0L, 5000L);
+		analise.registraLance(2, 2, 100, 0L, 11000L);
+
+		AgrupamentoDeLances porUsuario = analise.atual().agrupa(Chave.USUARIO, Medida.VALOR_INICIAL);
+
+		assertEquals(1, porUsuario.quantidade(100));
+		assertEquals(100.0, porUsuario.media(100), 0.00001);
+		assertEquals(10000L, porUsuario.minimo(100).getCentavos());
+		assertEquals(10000L, analise.atual().percentil(Medida.VALOR_INICIAL, 50).getCentavos());
+		assertEquals(2, analise.atual().agrupa(Chave.USUARIO, Medida.VALOR).quantidade(100));
+	}
+
+	@Test
+	public void deveListarOsLeiloesMaisDisputados() {
+		for (int leilao = 1; leilao <= 4; leilao++) {
+			analise.registraLeilao(leilao, 10, 10000L);
+		}
+		int id = 0;
+		for (int i = 0; i < 3; i++) analise.registraLance(++id, 3, 100, 0L, 10000L);
+		for (int i = 0; i < 5; i++) analise.registraLance(++id, 1, 100, 0L, 10000L);
+		for (int i = 0; i < 3; i++) analise.registraLance(++id, 2, 100, 0L, 10000L);
+
+		int[] disputados = analise.atual().agrupa(Chave.LEILAO, Medida.VALOR).maisFrequentes(2);
+
+		assertArrayEquals(new int[] { 1, 2 }, disputados);
+	}
+
+	@Test
+	public void deveCalcularPercentisPorGrupoEDeTodosOsLances() {
+		analise.registraLeilao(1, 10, 0L);
+		analise.registraLeilao(2, 10, 0L);
+		for (int i = 1; i <= 100; i++) {
+			analise.registraLance(i, 1, 100, 0L, i * 100L);
+		}
+		analise.registraLance(101, 2, 100, 0L, 1L);
+
+		InstantaneoDeLances instantaneo = analise.atual();
+		AgrupamentoDeLances porLeilao = instantaneo.agrupa(Chave.LEILAO, Medida.VALOR);
+
+		assertEquals(5000L, porLeilao.percentil(1, 50).getCentavos());
+		assertEquals(9900L, porLeilao.percentil(1, 99).getCentavos());
+		assertEquals(10000L, porLeilao.percentil(1, 100).getCentavos());
+		assertEquals(1L, porLeilao.percentil(2, 50).getCentavos());
+		assertEquals(1L, instantaneo.percentil(Medida.VALOR, 0).getCentavos());
+		assertEquals(5000L, instantaneo.percentil(Medida.VALOR, 50).getCentavos());
+	}
+
+	@Test
+	public void deveFiltrarLancesPeloPeriodo() {
+		analise.registraLeilao(1, 10, 0L);
+		analise.registraLance(1, 1, 100, 1000L, 100L);
+		analise.registraLance(2, 1, 100, 2000L, 200L);
+		analise.registraLance(3, 1, 100, 3000L, 300L);
+
+		AgrupamentoDeLances agrupamento = analise.atual().agrupa(Chave.LEILAO, Medida.VALOR, 2000L, 3000L);
+
+		assertEquals(1, agrupamento.quantidade(1));
+		assertEquals(200L, agrupamento.soma(1).getCentavos());
+	}
+
+	@Test
+	public void instantaneoAnteriorNaoEnxergaLancesNovos() {
+		analise.registraLeilao(1, 10, 0L);
+		analise.registraLance(1, 1, 100, 0L, 100L);
+		InstantaneoDeLances anterior = analise.atual();
+
+		for (int i = 2; i <= 3000; i++) {
+			analise.registraLance(i, 1, 100, 0L, 100L);
+		}
+
+		assertEquals(1, anterior.agrupa(Chave.LEILAO, Medida.VALOR).quantidade(1));
+		assertEquals(3000, analise.atual().agrupa(Chave.LEILAO, Medida.VALOR).quantidade(1));
+	}
+
+	@Test
+	public void deveAgruparEmParaleloComOMesmoResultadoDeUmaSomaSimples() {
+		Random aleatorio = new Random(42);
+		int usuarios = 500;
+		long[] somaEsperada = new long[usuarios + 1];
+		long[] maximoEsperado = new long[usuarios + 1];
+
+		analise.registraLeilao(1, 10, 0L);
+		for (int i = 1; i <= 200000; i++) {
+			int usuario = 1 + aleatorio.nextInt(usuarios);
+			long centavos = aleatorio.nextInt(1000000);
+			analise.registraLance(i, 1, usuario, 0L, centavos);
+			somaEsperada[usuario] += centavos;
+			maximoEsperado[usuario] = Math.max(maximoEsperado[usuario], centavos);
+		}
+
+		AgrupamentoDeLances porUsuario = analise.atual().agrupa(Chave.USUARIO, Medida.VALOR);
+
+		assertEquals(usuarios, porUsuario.getQuantidadeDeGrupos());
+		for (int usuario = 1; usuario <= usuarios; usuario++) {
+			assertEquals(somaEsperada[usuario], porUsuario.soma(usuario).getCentavos());
+			assertEquals(maximoEsperado[usuario], porUsuario.maximo(usuario).getCentavos());
+		}
+	}
+
+	@Test
+	public void recargaNaoDevePerderLanceDeIdMenorComitadoDuranteALeitura() {
+		analise.registraLeilao(1, 10, 0L);
+
+		analise.recarrega(() -> {
+			// o lance 5 foi inserido antes do 6, mas so comitou depois da leitura
+			analise.registraLance(6, 1, 100, 0L, 600L);
+			analise.registraLance(5, 1, 100, 0L, 500L);
+			return carregado(1, 6);
+		});
+
+		AgrupamentoDeLances porLeilao = analise.atual().agrupa(Chave.LEILAO, Medida.VALOR);
+
+		assertEquals(2, analise.atual().getQuantidadeDeLances());
+		assertEquals(1100L, porLeilao.soma(1).getCentavos());
+	}
+
+	private static InstantaneoDeLances carregado(int leilaoId, int lanceId) {
+		int[] ids = { leilaoId };
+		return new InstantaneoDeLances(ForkJoinPool.commonPool(), 1, ids, new int[] { 10 }, new long[] { 0L },
+				1, 1, new int[] { lanceId }, ids, new int[] { 100 }, new int[] { 10 }, new long[] { 0L },
+				new long[] { 600L }, new long[] { 0L });
+	}
+
+	@Test
+	public void deveCarregarDoBancoOMesmoValorInicialMedioDoDao() {
+		Session session = new CriadorDeSessao().getSession();
+		session.beginTransaction();
+		try {
+			LeilaoDao leilaoDao = new LeilaoDao(session);
+			UsuarioDao usuarioDao = new UsuarioDao(session);
+
+			Usuario dono = new Usuario("Dono Analise", "dono@analise.com.br");
+			Usuario comprador = new Usuario("Comprador Analise", "comprador@analise.com.br");
+			usuarioDao.salvar(dono);
+			usuarioDao.salvar(comprador);
+			leilaoDao.salvar(new LeilaoBuilder().comDono(dono).comValor(150.0)
+					.comLance(new Lance(Calendar.getInstance(), comprador, 160.0)).constroi());
+			leilaoDao.salvar(new LeilaoBuilder().comDono(dono).comValor(250.0)
+					.comLance(new Lance(Calendar.getInstance(), comprador, 260.0)).constroi());
+			session.flush();
+
+			analise.recarrega(session);
+			Leilao novo = new LeilaoBuilder().comDono(dono).comValor(500.0).constroi();
+			leilaoDao.salvar(novo);
+			Lance lance = new Lance(Calendar.getInstance(), comprador, 510.0);
+			lance.setLeilao(novo);
+			session.save(lance);
+			analise.registra(novo);
+			analise.registra(lance);
+
+			AgrupamentoDeLances porUsuario = analise.atual().agrupa(Chave.USUARIO, Medida.VALOR_INICIAL);
+
+			assertEquals(leilaoDao.getValorInicialMedioDoUsuario(comprador), porUsuario.media(comprador.getId()), 0.00001);
+			assertEquals(3, porUsuario.quantidade(comprador.getId()));
+		} finally {
+			session.getTransaction().rollback();
+			session.close();
+		}
+	}
+
+	@Test
+	public void soDeveReceberLancesDeTransacoesComitadas() {
+		CriadorDeSessao criador = BancoEmMemoria.limpo("analise");
+		analise.acompanha(criador);
+
+		Session session = criador.getSession();
+		try {
+			session.beginTransaction();
+			salvaLeilaoComUmLance(session, "Desfeito");
+			session.getTransaction().rollback();
+
+			assertEquals(0, analise.atual().getQuantidadeDeLances());
+
+			session.beginTransaction();
+			Leilao comitado = salvaLeilaoComUmLance(session, "Comitado");
+			session.getTransaction().commit();
+
+			assertEquals(1, analise.atual().getQuantidadeDeLances());
+			assertEquals(1, analise.atual().agrupa(Chave.LEILAO, Medida.VALOR).quantidade(comitado.getId()));
+
+			analise.close();
+			session.beginTransaction();
+			salvaLeilaoComUmLance(session, "Fechado");
+			session.getTransaction().commit();
+
+			assertEquals(1, analise.atual().getQuantidadeDeLances());
+		} finally {
+			analise.close();
+			session.close();
+		}
+	}
+
+	private static Leilao salvaLeilaoComUmLance(Session session, String nome) {
+		Usuario usuario = new Usuario(nome + " Analise", nome.toLowerCase() + "@analise.com.br");
+		Leilao leilao = new LeilaoBuilder().comDono(usuario)
+				.comLance(new Lance(Calendar.getInstance(), usuario, 100.0))
+				.constroi();
+
+		new UsuarioDao(session).salvar(usuario);
+		new LeilaoDao(session).salvar(leilao);
+		return leilao;
+	}
+}
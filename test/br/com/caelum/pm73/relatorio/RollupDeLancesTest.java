@@ -0,0 +1,197 @@
+package br.com.caelum.pm73.relatorio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Calendar;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.BancoEmMemoria;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.LeilaoBuilder;
+import br.com.caelum.pm73.dominio.Usuario;
+
+public class RollupDeLancesTest {
+
+	private RollupDeLances rollup;
+
+	@Before
+	public void antes() {
+		rollup = new RollupDeLances(ZoneOffset.UTC);
+	}
+
+	@Test
+	public void deveAgruparLancesPorHora() {
+		rollup.registra(em(2020, 7, 31, 10, 5), 1, 1, 10000L);
+		rollup.registra(em(2020, 7, 31, 10, 50), 1, 2, 30000L);
+		rollup.registra(em(2020, 7, 31, 11, 0), 1, 1, 20000L);
+
+		List<ResumoDeLances> horas = rollup.porHora(em(2020, 7, 31, 0, 0), em(2020, 8, 1, 0, 0));
+
+		assertEquals(2, horas.size());
+		assertEquals(em(2020, 7, 31, 10, 0), horas.get(0).getInicio());
+		assertEquals(2, horas.get(0).getQuantidade());
+		assertEquals(40000L, horas.get(0).getSoma().getCentavos());
+		assertEquals(10000L, horas.get(0).getMinimo().getCentavos());
+		assertEquals(30000L, horas.get(0).getMaximo().getCentavos());
+		assertEquals(2, horas.get(0).getUsuariosDistintos());
+		assertEquals(1, horas.get(1).getQuantidade());
+	}
+
+	@Test
+	public void deveResumirIntervaloUsandoDiasInteirosEPontasPorHora() {
+		rollup.registra(em(2020, 7, 30, 22, 0), 1, 1, 1000L);
+		rollup.registra(em(2020, 7, 31, 12, 0), 1, 2, 2000L);
+		rollup.registra(em(2020, 8, 1, 1, 0), 2, 3, 3000L);
+		rollup.registra(em(2020, 8, 1, 5, 0), 2, 3, 4000L);
+
+		ResumoDeLances resumo = rollup.resumoEntre(em(2020, 7, 30, 22, 0), em(2020, 8, 1, 2, 0));
+
+		assertEquals(3, resumo.getQuantidade());
+		assertEquals(6000L, resumo.getSoma().getCentavos());
+		assertEquals(3, resumo.getUsuariosDistintos());
+	}
+
+	@Test
+	public void deveManterTotaisDoDiaAposCompactarAsHoras() {
+		rollup.registra(em(2020, 7, 31, 10, 0), 1, 1, 10000L);
+		rollup.registra(em(2020, 7, 31, 15, 0), 1, 2, 20000L);
+
+		rollup.compacta(em(2020, 8, 1, 0, 0));
+
+		assertEquals(0, rollup.porHora(em(2020, 7, 31, 0, 0), em(2020, 8, 1, 0, 0)).size());
+		List<ResumoDeLances> dias = rollup.porDia(em(2020, 7, 31, 0, 0), em(2020, 8, 1, 0, 0));
+		assertEquals(1, dias.size());
+		assertEquals(30000L, dias.get(0).getSoma().getCentavos());
+	}
+
+	@Test
+	public void deveSomarValorNegociadoPorLeilao() {
+		rollup.registra(em(2020, 7, 31, 10, 0), 1, 1, 10000L);
+		rollup.registra(em(2020, 7, 31, 11, 0), 1, 2, 15000L);
+		rollup.registra(em(2020, 7, 31, 12, 0), 2, 2, 99900L);
+
+		ResumoDeLances leilao = rollup.doLeilao(1);
+
+		assertEquals(2, leilao.getQuantidade());
+		assertEquals(25000L, leilao.getSoma().getCentavos());
+		assertEquals(15000L, leilao.getMaximo().getCentavos());
+		assertEquals(0, rollup.doLeilao(42).getQuantidade());
+	}
+
+	@Test
+	public void deveFalharAoResumirHorasJaCompactadas() {
+		rollup.registra(em(2020, 7, 31, 10, 0), 1, 1, 10000L);
+		rollup.registra(em(2020, 7, 31, 15, 0), 1, 2, 20000L);
+
+		rollup.compacta(em(2020, 8, 1, 0, 0));
+
+		assertEquals(30000L, rollup.resumoEntre(em(2020, 7, 31, 0, 0), em(2020, 8, 1, 0, 0)).getSoma().getCentavos());
+		try {
+			rollup.resumoEntre(em(2020, 7, 31, 9, 0), em(2020, 7, 31, 12, 0));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void deveCompactarDiasMantendoOsTotaisDoMes() {
+		rollup.registra(em(2020, 7, 30, 10, 0), 1, 1, 10000L);
+		rollup.registra(em(2020, 7, 31, 15, 0), 1, 2, 20000L);
+		rollup.registra(em(2020, 8, 1, 15, 0), 1, 2, 40000L);
+
+		rollup.compactaDias(em(2020, 8, 1, 0, 0));
+
+		assertEquals(0, rollup.porDia(em(2020, 7, 1, 0, 0), em(2020, 8, 1, 0, 0)).size());
+		assertEquals(1, rollup.porDia(em(2020, 8, 1, 0, 0), em(2020, 8, 2, 0, 0)).size());
+		List<ResumoDeLances> meses = rollup.porMes(em(2020, 7, 1, 0, 0), em(2020, 9, 1, 0, 0));
+		assertEquals(2, meses.size());
+		assertEquals(30000L, meses.get(0).getSoma().getCentavos());
+		assertEquals(70000L, rollup.resumoEntre(em(2020, 7, 1, 0, 0), em(2020, 8, 2, 0, 0)).getSoma().getCentavos());
+		try {
+			rollup.resumoEntre(em(2020, 7, 31, 0, 0), em(2020, 8, 2, 0, 0));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void soDeveEstimarUsuariosPorLeilaoQuandoPedido() {
+		RollupDeLances comUsuarios = new RollupDeLances(ZoneOffset.UTC, true);
+		for (RollupDeLances r : new RollupDeLances[] { rollup, comUsuarios }) {
+			r.registra(em(2020, 7, 31, 10, 0), 1, 1, 10000L);
+			r.registra(em(2020, 7, 31, 11, 0), 1, 2, 15000L);
+		}
+
+		assertEquals(0, rollup.doLeilao(1).getUsuariosDistintos());
+		assertEquals(2, comUsuarios.doLeilao(1).getUsuariosDistintos());
+		assertEquals(2, rollup.porHora(em(2020, 7, 31, 0, 0), em(2020, 8, 1, 0, 0)).size());
+	}
+
+	@Test
+	public void soDeveContarLancesDeTransacoesComitadas() {
+		CriadorDeSessao criador = BancoEmMemoria.limpo("rollup");
+		rollup.acompanha(criador);
+
+		Session session = criador.getSession();
+		try {
+			session.beginTransaction();
+			Leilao desfeito = salvaLeilaoComUmLance(session, "Desfeito");
+			session.getTransaction().rollback();
+
+			assertEquals(0, rollup.doLeilao(desfeito.getId()).getQuantidade());
+
+			session.beginTransaction();
+			Leilao comitado = salvaLeilaoComUmLance(session, "Comitado");
+			session.getTransaction().commit();
+
+			assertEquals(1, rollup.doLeilao(comitado.getId()).getQuantidade());
+
+			rollup.close();
+			session.beginTransaction();
+			Leilao depoisDeFechado = salvaLeilaoComUmLance(session, "Fechado");
+			session.getTransaction().commit();
+
+			assertEquals(0, rollup.doLeilao(depoisDeFechado.getId()).getQuantidade());
+		} finally {
+			rollup.close();
+			session.close();
+		}
+	}
+
+	private static Leilao salvaLeilaoComUmLance(Session session, String nome) {
+		Usuario usuario = new Usuario(nome, nome.toLowerCase() + "@rollup.com.br");
+		Leilao leilao = new LeilaoBuilder().comDono(usuario)
+				.comLance(new Lance(Calendar.getInstance(), usuario, 100.0))
+				.constroi();
+
+		new UsuarioDao(session).salvar(usuario);
+		new LeilaoDao(session).salvar(leilao);
+		return leilao;
+	}
+
+	@Test
+	public void deveEstimarUsuariosDistintosComErroPequeno() {
+		EsbocoDeCardinalidade esboco = new EsbocoDeCardinalidade();
+		for (int i = 1; i <= 100000; i++) {
+			esboco.adiciona(i);
+			esboco.adiciona(i);
+		}
+
+		assertEquals(100000, esboco.estimativa(), 100000 * 0.1);
+	}
+
+	private static long em(int ano, int mes, int dia, int hora, int minuto) {
+		return LocalDateTime.of(ano, mes, dia, hora, minuto).toInstant(ZoneOffset.UTC).toEpochMilli();
+	}
+}